@@ -0,0 +1,126 @@
+package org.homio.bundle.mongodb;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Indexes;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.Document;
+import org.homio.bundle.mongodb.codec.JsonNodeCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.homio.api.util.JsonUtils.OBJECT_MAPPER;
+
+/**
+ * Round trips against real server: MONGO_URL environment variable, 'mongodb://localhost:27017' by default. Uses and
+ * drops 'homio_benchmark' database. Fails fast in setup when server isn't reachable.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MongoDriverBenchmark {
+
+  private static final String DATABASE = "homio_benchmark";
+  private static final int SEED = 1000;
+
+  @Param({"Small", "Medium", "Large"})
+  private SyntheticDocuments.Size size;
+
+  private MongoClient client;
+  private MongoCollection<Document> collection;
+  private MongoCollection<ObjectNode> jsonCollection;
+  private int counter;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    String url = System.getenv().getOrDefault("MONGO_URL", "mongodb://localhost:27017");
+    client = MongoClients.create(MongoClientSettings.builder()
+      .applyConnectionString(new ConnectionString(url))
+      .applyToClusterSettings(cluster -> cluster.serverSelectionTimeout(2, TimeUnit.SECONDS))
+      .build());
+    MongoDatabase database = client.getDatabase(DATABASE);
+    try {
+      database.runCommand(new BsonDocument("ping", new BsonInt32(1)));
+    } catch (Exception ex) {
+      client.close();
+      throw new IllegalStateException("No mongod available at " + url, ex);
+    }
+    collection = database.getCollection("docs_" + size.name().toLowerCase());
+    collection.drop();
+    List<Document> documents = new ArrayList<>(SEED);
+    for (int i = 0; i < SEED; i++) {
+      documents.add(SyntheticDocuments.create(size, i).append("seq", i));
+    }
+    collection.insertMany(documents);
+    collection.createIndex(Indexes.ascending("seq"));
+    jsonCollection = JsonNodeCodec.DEFAULT.wrap(collection);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    client.getDatabase(DATABASE).drop();
+    client.close();
+  }
+
+  @Benchmark
+  public void insertOne() {
+    collection.insertOne(SyntheticDocuments.create(size, counter++));
+  }
+
+  @Benchmark
+  public ObjectNode readDoc() {
+    return jsonCollection.find(Filters.eq("seq", counter++ % SEED)).first();
+  }
+
+  @Benchmark
+  public ArrayNode readDocs() {
+    try (MongoCursor<ObjectNode> iterator = jsonCollection.find().limit(100).iterator()) {
+      ArrayNode arrayNode = OBJECT_MAPPER.createArrayNode();
+      while (iterator.hasNext()) {
+        arrayNode.add(iterator.next());
+      }
+      return arrayNode;
+    }
+  }
+
+  /**
+   * Document.toJson() and readTree - read path used before direct codec
+   */
+  @Benchmark
+  public ArrayNode readDocsToJson() throws Exception {
+    try (MongoCursor<Document> iterator = collection.find().limit(100).iterator()) {
+      ArrayNode arrayNode = OBJECT_MAPPER.createArrayNode();
+      while (iterator.hasNext()) {
+        arrayNode.add(OBJECT_MAPPER.readTree(iterator.next().toJson()));
+      }
+      return arrayNode;
+    }
+  }
+}
@@ -0,0 +1,61 @@
+package org.homio.bundle.mongodb;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.types.Decimal128;
+import org.bson.types.ObjectId;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Sensor-like documents shared by benchmarks
+ */
+public final class SyntheticDocuments {
+
+  private static final DocumentCodec DOCUMENT_CODEC = new DocumentCodec();
+
+  private SyntheticDocuments() {
+  }
+
+  public static Document create(Size size, int index) {
+    Document document = new Document("_id", new ObjectId())
+      .append("device", "sensor-" + index)
+      .append("created", new Date(index * 1000L))
+      .append("price", new Decimal128(new BigDecimal("12.345")))
+      .append("online", index % 2 == 0)
+      .append("value", index * 0.5);
+    if (size == Size.Small) {
+      return document;
+    }
+    List<Document> readings = new ArrayList<>(size.readings);
+    for (int i = 0; i < size.readings; i++) {
+      readings.add(new Document("ts", new Date(i * 1000L)).append("value", i * 0.5).append("unit", "C"));
+    }
+    return document
+      .append("readings", readings)
+      .append("meta", new Document("room", "kitchen").append("floor", index % 5).append("tags", List.of("a", "b")));
+  }
+
+  public static RawBsonDocument createRaw(Size size, int index) {
+    return new RawBsonDocument(create(size, index), DOCUMENT_CODEC);
+  }
+
+  public enum Size {
+    // ~150 bytes
+    Small(0),
+    // ~3 KB
+    Medium(50),
+    // ~60 KB
+    Large(1000);
+
+    private final int readings;
+
+    Size(int readings) {
+      this.readings = readings;
+    }
+  }
+}
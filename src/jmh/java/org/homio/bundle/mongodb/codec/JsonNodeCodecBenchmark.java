@@ -0,0 +1,69 @@
+package org.homio.bundle.mongodb.codec;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.types.Decimal128;
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.homio.api.util.JsonUtils.OBJECT_MAPPER;
+
+/**
+ * Compares previous Document.toJson()/readTree read path with direct BSON to JsonNode decoding.
+ * Run with '-prof gc' to see allocation rate per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonNodeCodecBenchmark {
+
+  private static final DocumentCodec DOCUMENT_CODEC = new DocumentCodec();
+
+  private RawBsonDocument document;
+
+  @Setup
+  public void setUp() {
+    Document source = new Document("_id", new ObjectId())
+      .append("device", "sensor-42")
+      .append("created", new Date())
+      .append("price", new Decimal128(new BigDecimal("12.345")))
+      .append("online", true);
+    List<Document> readings = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      readings.add(new Document("ts", new Date(i * 1000L)).append("value", i * 0.5).append("unit", "C"));
+    }
+    source.append("readings", readings);
+    source.append("meta", new Document("room", "kitchen").append("floor", 1).append("tags", List.of("a", "b", "c")));
+    document = new RawBsonDocument(source, DOCUMENT_CODEC);
+  }
+
+  @Benchmark
+  public JsonNode toJsonReadTree() throws Exception {
+    return OBJECT_MAPPER.readTree(document.decode(DOCUMENT_CODEC).toJson());
+  }
+
+  @Benchmark
+  public JsonNode directDecode() {
+    return JsonNodeCodec.DEFAULT.decode(document);
+  }
+}
@@ -0,0 +1,68 @@
+package org.homio.bundle.mongodb.entity;
+
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.homio.bundle.mongodb.SyntheticDocuments;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local filter evaluation of watch blocks sharing one change stream, per received change event
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WatchMatcherBenchmark {
+
+  @Param({"Small", "Medium", "Large"})
+  private SyntheticDocuments.Size size;
+
+  private RawBsonDocument event;
+  private BsonFilterMatcher equality;
+  private BsonFilterMatcher range;
+  private BsonFilterMatcher arrayPath;
+
+  @Setup
+  public void setUp() {
+    BsonDocument changeEvent = new BsonDocument("_id", new BsonDocument("_data", new BsonString("8264A1")))
+      .append("operationType", new BsonString("insert"))
+      .append("ns", new BsonDocument("db", new BsonString("homio")).append("coll", new BsonString("sensors")))
+      .append("fullDocument", SyntheticDocuments.createRaw(size, 1));
+    event = new RawBsonDocument(changeEvent, new BsonDocumentCodec());
+    equality = BsonFilterMatcher.compile(BsonDocument.parse("{'fullDocument.device': 'sensor-1'}"));
+    range = BsonFilterMatcher.compile(BsonDocument.parse(
+      "{'fullDocument.value': {$gte: 0, $lt: 100}, 'fullDocument.meta.room': {$in: ['kitchen', 'hall']}}"));
+    arrayPath = BsonFilterMatcher.compile(BsonDocument.parse("{'fullDocument.readings.unit': 'F'}"));
+  }
+
+  @Benchmark
+  public boolean equality() {
+    return equality.matches(event);
+  }
+
+  @Benchmark
+  public boolean range() {
+    return range.matches(event);
+  }
+
+  @Benchmark
+  public boolean arrayPath() {
+    return arrayPath.matches(event);
+  }
+}
@@ -0,0 +1,52 @@
+package org.homio.bundle.mongodb.workspace;
+
+import org.bson.BsonDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Block input parsing: plain BsonDocument.parse against cached constant inputs and rendered '${...}' templates
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BsonTemplateCacheBenchmark {
+
+  private static final String FILTER = "{device: 'sensor-1', value: {$gte: 10, $lt: 20}, 'meta.room': 'kitchen'}";
+  private static final String TEMPLATE = "{device: '${device}', value: ${value}, online: true, unit: 'C'}";
+  private static final String RESOLVED = "{device: 'sensor-1', value: 12.5, online: true, unit: 'C'}";
+
+  private final BsonTemplateCache templates = new BsonTemplateCache(512);
+
+  @Benchmark
+  public BsonDocument parseFilter() {
+    return BsonDocument.parse(FILTER);
+  }
+
+  @Benchmark
+  public BsonDocument cachedFilter() {
+    return templates.get(FILTER);
+  }
+
+  @Benchmark
+  public BsonDocument parseResolvedTemplate() {
+    return BsonDocument.parse(RESOLVED);
+  }
+
+  @Benchmark
+  public BsonDocument renderTemplate() {
+    return templates.render(TEMPLATE, () -> RESOLVED);
+  }
+}
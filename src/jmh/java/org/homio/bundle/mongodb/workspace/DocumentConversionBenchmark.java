@@ -0,0 +1,80 @@
+package org.homio.bundle.mongodb.workspace;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.homio.api.state.JsonType;
+import org.homio.bundle.mongodb.SyntheticDocuments;
+import org.homio.bundle.mongodb.codec.JsonNodeCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.homio.api.util.JsonUtils.OBJECT_MAPPER;
+
+/**
+ * Per-call conversions of document blocks: bsonToDocument for inserts, docToJson for readDoc and the array
+ * building loop of readDocs over a batch of 100 documents.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DocumentConversionBenchmark {
+
+  private static final int BATCH = 100;
+
+  @Param({"Small", "Medium", "Large"})
+  private SyntheticDocuments.Size size;
+
+  private RawBsonDocument raw;
+  private BsonDocument tree;
+  private RawBsonDocument[] batch;
+
+  @Setup
+  public void setUp() {
+    raw = SyntheticDocuments.createRaw(size, 1);
+    tree = BsonDocument.parse(raw.toJson());
+    batch = new RawBsonDocument[BATCH];
+    for (int i = 0; i < BATCH; i++) {
+      batch[i] = SyntheticDocuments.createRaw(size, i);
+    }
+  }
+
+  @Benchmark
+  public Document bsonToDocumentRaw() {
+    return Scratch3MongoDBBlocks.bsonToDocument(raw);
+  }
+
+  @Benchmark
+  public Document bsonToDocumentTree() {
+    return Scratch3MongoDBBlocks.bsonToDocument(tree);
+  }
+
+  @Benchmark
+  public JsonType docToJson() {
+    return new JsonType(JsonNodeCodec.DEFAULT.decode(raw));
+  }
+
+  @Benchmark
+  public JsonType readDocsLoop() {
+    ArrayNode arrayNode = OBJECT_MAPPER.createArrayNode();
+    for (RawBsonDocument document : batch) {
+      arrayNode.add(JsonNodeCodec.DEFAULT.decode(document));
+    }
+    return new JsonType(arrayNode);
+  }
+}
@@ -1,38 +1,77 @@
 package org.homio.bundle.mongodb;
 
-import com.mongodb.client.MongoDatabase;
 import lombok.RequiredArgsConstructor;
+import lombok.extern.log4j.Log4j2;
 import org.homio.api.Context;
 import org.homio.api.model.OptionModel;
+import org.homio.bundle.mongodb.entity.MongoCommandStats;
 import org.homio.bundle.mongodb.entity.MongoDBEntity;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import static org.homio.api.util.CommonUtils.getErrorMessage;
+
+@Log4j2
 @RequiredArgsConstructor
 @RestController
 @RequestMapping("/rest/mongo")
 public class MongoController {
 
+  private static final long COLLECTIONS_TIMEOUT_MS = 2000;
+
   private final Context context;
 
   @GetMapping("/entityWithColl")
   public List<OptionModel> getEntityWithCollections() {
-    List<OptionModel> result = new ArrayList<>();
-    List<MongoDBEntity> list = context.db().findAll(MongoDBEntity.class);
+    Map<MongoDBEntity, CompletableFuture<List<String>>> collections = new LinkedHashMap<>();
+    // services that aren't connected yet connect in parallel, each within same deadline
+    for (MongoDBEntity entity : context.db().findAll(MongoDBEntity.class)) {
+      collections.put(entity, entity.getService().warmUp());
+    }
 
-    for (MongoDBEntity entity : list) {
-      MongoDatabase mongoDatabase = entity.getService().getMongoDatabase();
-      if (mongoDatabase != null) {
-        for (String collection : mongoDatabase.listCollectionNames()) {
+    List<OptionModel> result = new ArrayList<>();
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(COLLECTIONS_TIMEOUT_MS);
+    for (Map.Entry<MongoDBEntity, CompletableFuture<List<String>>> item : collections.entrySet()) {
+      MongoDBEntity entity = item.getKey();
+      try {
+        List<String> names = item.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        for (String collection : names) {
           result.add(
             OptionModel.of(entity.getEntityID() + "/" + collection, entity.getTitle() + " (" + collection + ")"));
         }
+      } catch (TimeoutException ex) {
+        log.warn("Timeout while loading collections of '{}'", entity.getTitle());
+      } catch (Exception ex) {
+        log.warn("Unable to load collections of '{}': {}", entity.getTitle(), getErrorMessage(ex));
       }
     }
     return result;
   }
+
+  /**
+   * Command latency histograms grouped by command, collection and originating workspace block, plus recent slow
+   * commands
+   */
+  @GetMapping("/stats/{entityID}")
+  public MongoCommandStats.Report getCommandStats(@PathVariable("entityID") String entityID) {
+    MongoDBEntity entity = context.db().get(entityID);
+    if (entity == null) {
+      throw new IllegalArgumentException("Unable to find MongoDB entity: " + entityID);
+    }
+    MongoCommandStats stats = entity.getService().getCommandStats();
+    if (stats == null) {
+      throw new IllegalStateException("MongoDB service '" + entity.getTitle() + "' isn't initialized");
+    }
+    return stats.getReport();
+  }
 }
@@ -4,15 +4,54 @@ import lombok.RequiredArgsConstructor;
 import lombok.extern.log4j.Log4j2;
 import org.homio.api.AddonConfiguration;
 import org.homio.api.AddonEntrypoint;
+import org.homio.api.Context;
+import org.homio.bundle.mongodb.entity.MongoClientRegistry;
+import org.homio.bundle.mongodb.entity.MongoDBEntity;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 @Log4j2
 @Component
 @AddonConfiguration
 @RequiredArgsConstructor
 public class MongoDBEntrypoint implements AddonEntrypoint {
 
+  private final Context context;
+
+  /**
+   * Services don't connect while Homio starts. Entities with background connect mode are connected here in parallel,
+   * each on own service thread, and their collection names are loaded for block menus
+   */
   @Override
   public void init() {
+    context.bgp().builder("mongodb-warm-up").execute(this::warmUp);
+  }
+
+  /**
+   * Services are destroyed by Homio, shared clients and evictor thread of registry are not
+   */
+  @Override
+  public void destroy() {
+    MongoClientRegistry.shutdown();
+  }
+
+  private void warmUp() {
+    long started = System.currentTimeMillis();
+    List<CompletableFuture<?>> futures = new ArrayList<>();
+    for (MongoDBEntity entity : context.db().findAll(MongoDBEntity.class)) {
+      if (entity.getConnectMode() == MongoDBEntity.ConnectMode.Background) {
+        // failures are logged by service
+        futures.add(entity.getService().warmUp());
+      }
+    }
+    if (!futures.isEmpty()) {
+      CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).exceptionally(ex -> null).join();
+      long failed = futures.stream().filter(CompletableFuture::isCompletedExceptionally).count();
+      log.info("Warmed up {} MongoDB services in {}ms, {} failed", futures.size(),
+        System.currentTimeMillis() - started, failed);
+    }
   }
 }
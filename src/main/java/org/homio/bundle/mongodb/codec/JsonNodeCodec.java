@@ -0,0 +1,270 @@
+package org.homio.bundle.mongodb.codec;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.BinaryNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.mongodb.client.MongoCollection;
+import org.bson.BsonBinary;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonReader;
+import org.bson.BsonRegularExpression;
+import org.bson.BsonTimestamp;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.types.Decimal128;
+import org.bson.types.ObjectId;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.Map;
+
+import static org.bson.codecs.configuration.CodecRegistries.fromCodecs;
+import static org.bson.codecs.configuration.CodecRegistries.fromRegistries;
+
+/**
+ * Decodes BSON straight into Jackson tree without intermediate Document/json string. Default modes produce same json as
+ * relaxed {@code Document.toJson()}.
+ */
+public class JsonNodeCodec implements Codec<ObjectNode> {
+
+  public static final JsonNodeCodec DEFAULT =
+    new JsonNodeCodec(ObjectIdMode.Extended, DateMode.Extended, DecimalMode.Extended);
+
+  private static final JsonNodeFactory FACTORY = JsonNodeFactory.instance;
+
+  private final ObjectIdMode objectIdMode;
+  private final DateMode dateMode;
+  private final DecimalMode decimalMode;
+
+  public JsonNodeCodec(ObjectIdMode objectIdMode, DateMode dateMode, DecimalMode decimalMode) {
+    this.objectIdMode = objectIdMode;
+    this.dateMode = dateMode;
+    this.decimalMode = decimalMode;
+  }
+
+  /**
+   * @return same collection which decodes documents as ObjectNode
+   */
+  public MongoCollection<ObjectNode> wrap(MongoCollection<?> collection) {
+    return collection.withDocumentClass(ObjectNode.class).withCodecRegistry(registry(collection.getCodecRegistry()));
+  }
+
+  public CodecRegistry registry(CodecRegistry parent) {
+    return fromRegistries(fromCodecs(this), parent);
+  }
+
+  public ObjectNode decode(BsonDocument document) {
+    if (document == null) {
+      return null;
+    }
+    if (document instanceof RawBsonDocument rawBsonDocument) {
+      return rawBsonDocument.decode(this);
+    }
+    return readDocument(new BsonDocumentReader(document));
+  }
+
+  @Override
+  public ObjectNode decode(BsonReader reader, DecoderContext decoderContext) {
+    return readDocument(reader);
+  }
+
+  @Override
+  public void encode(BsonWriter writer, ObjectNode value, EncoderContext encoderContext) {
+    writeDocument(writer, value);
+  }
+
+  @Override
+  public Class<ObjectNode> getEncoderClass() {
+    return ObjectNode.class;
+  }
+
+  private ObjectNode readDocument(BsonReader reader) {
+    ObjectNode node = FACTORY.objectNode();
+    reader.readStartDocument();
+    while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+      String name = reader.readName();
+      node.set(name, readValue(reader));
+    }
+    reader.readEndDocument();
+    return node;
+  }
+
+  private ArrayNode readArray(BsonReader reader) {
+    ArrayNode node = FACTORY.arrayNode();
+    reader.readStartArray();
+    while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+      node.add(readValue(reader));
+    }
+    reader.readEndArray();
+    return node;
+  }
+
+  private JsonNode readValue(BsonReader reader) {
+    switch (reader.getCurrentBsonType()) {
+      case DOCUMENT:
+        return readDocument(reader);
+      case ARRAY:
+        return readArray(reader);
+      case STRING:
+        return FACTORY.textNode(reader.readString());
+      case INT32:
+        return FACTORY.numberNode(reader.readInt32());
+      case INT64:
+        return FACTORY.numberNode(reader.readInt64());
+      case DOUBLE:
+        double value = reader.readDouble();
+        return Double.isFinite(value) ? FACTORY.numberNode(value) : wrap("$numberDouble", Double.toString(value));
+      case BOOLEAN:
+        return FACTORY.booleanNode(reader.readBoolean());
+      case NULL:
+        reader.readNull();
+        return FACTORY.nullNode();
+      case OBJECT_ID:
+        return readObjectId(reader.readObjectId());
+      case DATE_TIME:
+        return readDate(reader.readDateTime());
+      case DECIMAL128:
+        return readDecimal(reader.readDecimal128());
+      case BINARY:
+        BsonBinary binary = reader.readBinaryData();
+        ObjectNode binaryNode = FACTORY.objectNode();
+        binaryNode.put("base64", Base64.getEncoder().encodeToString(binary.getData()));
+        binaryNode.put("subType", HexFormat.of().toHexDigits(binary.getType()));
+        return wrap("$binary", binaryNode);
+      case TIMESTAMP:
+        BsonTimestamp timestamp = reader.readTimestamp();
+        ObjectNode timestampNode = FACTORY.objectNode();
+        timestampNode.put("t", Integer.toUnsignedLong(timestamp.getTime()));
+        timestampNode.put("i", Integer.toUnsignedLong(timestamp.getInc()));
+        return wrap("$timestamp", timestampNode);
+      case REGULAR_EXPRESSION:
+        BsonRegularExpression regex = reader.readRegularExpression();
+        ObjectNode regexNode = FACTORY.objectNode();
+        regexNode.put("pattern", regex.getPattern());
+        regexNode.put("options", regex.getOptions());
+        return wrap("$regularExpression", regexNode);
+      case SYMBOL:
+        return wrap("$symbol", reader.readSymbol());
+      case JAVASCRIPT:
+        return wrap("$code", reader.readJavaScript());
+      case MIN_KEY:
+        reader.readMinKey();
+        return FACTORY.objectNode().put("$minKey", 1);
+      case MAX_KEY:
+        reader.readMaxKey();
+        return FACTORY.objectNode().put("$maxKey", 1);
+      case UNDEFINED:
+        reader.readUndefined();
+        return FACTORY.objectNode().put("$undefined", true);
+      default:
+        reader.skipValue();
+        return FACTORY.nullNode();
+    }
+  }
+
+  private JsonNode readObjectId(ObjectId objectId) {
+    String hex = objectId.toHexString();
+    return objectIdMode == ObjectIdMode.Hex ? FACTORY.textNode(hex) : wrap("$oid", hex);
+  }
+
+  private JsonNode readDate(long epochMillis) {
+    return switch (dateMode) {
+      case Epoch -> FACTORY.numberNode(epochMillis);
+      case Iso -> FACTORY.textNode(Instant.ofEpochMilli(epochMillis).toString());
+      case Extended -> epochMillis >= 0 && epochMillis <= 253402300799999L
+        ? wrap("$date", Instant.ofEpochMilli(epochMillis).toString())
+        : wrap("$date", wrap("$numberLong", Long.toString(epochMillis)));
+    };
+  }
+
+  private JsonNode readDecimal(Decimal128 decimal) {
+    if (decimalMode == DecimalMode.Number && !decimal.isNaN() && !decimal.isInfinite()) {
+      return FACTORY.numberNode(decimal.bigDecimalValue());
+    }
+    return decimalMode == DecimalMode.Extended ? wrap("$numberDecimal", decimal.toString())
+      : FACTORY.textNode(decimal.toString());
+  }
+
+  private static ObjectNode wrap(String key, String value) {
+    return FACTORY.objectNode().put(key, value);
+  }
+
+  private static ObjectNode wrap(String key, JsonNode value) {
+    ObjectNode node = FACTORY.objectNode();
+    node.set(key, value);
+    return node;
+  }
+
+  private void writeDocument(BsonWriter writer, JsonNode node) {
+    writer.writeStartDocument();
+    Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+    while (fields.hasNext()) {
+      Map.Entry<String, JsonNode> field = fields.next();
+      writer.writeName(field.getKey());
+      writeValue(writer, field.getValue());
+    }
+    writer.writeEndDocument();
+  }
+
+  private void writeValue(BsonWriter writer, JsonNode node) {
+    switch (node.getNodeType()) {
+      case OBJECT -> {
+        if (node.size() == 1 && node.has("$oid") && node.get("$oid").isTextual()) {
+          writer.writeObjectId(new ObjectId(node.get("$oid").asText()));
+        } else if (node.size() == 1 && node.has("$date") && node.get("$date").isTextual()) {
+          writer.writeDateTime(Instant.parse(node.get("$date").asText()).toEpochMilli());
+        } else if (node.size() == 1 && node.has("$numberDecimal")) {
+          writer.writeDecimal128(Decimal128.parse(node.get("$numberDecimal").asText()));
+        } else {
+          writeDocument(writer, node);
+        }
+      }
+      case ARRAY -> {
+        writer.writeStartArray();
+        for (JsonNode item : node) {
+          writeValue(writer, item);
+        }
+        writer.writeEndArray();
+      }
+      case STRING -> writer.writeString(node.textValue());
+      case BOOLEAN -> writer.writeBoolean(node.booleanValue());
+      case BINARY -> writer.writeBinaryData(new BsonBinary(((BinaryNode) node).binaryValue()));
+      case NUMBER -> {
+        if (node.isInt() || node.isShort()) {
+          writer.writeInt32(node.intValue());
+        } else if (node.isLong()) {
+          writer.writeInt64(node.longValue());
+        } else if (node.isBigDecimal() || node.isBigInteger()) {
+          writer.writeDecimal128(new Decimal128(new BigDecimal(node.numberValue().toString())));
+        } else {
+          writer.writeDouble(node.doubleValue());
+        }
+      }
+      case POJO -> writer.writeString(node.toString());
+      default -> writer.writeNull();
+    }
+  }
+
+  public enum ObjectIdMode {
+    Extended, Hex
+  }
+
+  public enum DateMode {
+    Extended, Iso, Epoch
+  }
+
+  public enum DecimalMode {
+    Extended, Number, Text
+  }
+}
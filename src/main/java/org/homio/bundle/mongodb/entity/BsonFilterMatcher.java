@@ -0,0 +1,358 @@
+package org.homio.bundle.mongodb.entity;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.types.Decimal128;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Evaluates subset of MongoDB query language against in-memory documents: field equality and regular expressions with
+ * dotted paths, $eq, $ne, $gt, $gte, $lt, $lte, $in, $nin, $exists, $regex, $size, $not, $and, $or, $nor.
+ * {@link #compile(BsonDocument)} throws {@link UnsupportedFilterException} for any other operator or malformed
+ * operand so caller can fallback to server side evaluation.
+ */
+public final class BsonFilterMatcher {
+
+  public static final BsonFilterMatcher ANY = new BsonFilterMatcher(document -> true, true);
+
+  private final Predicate<BsonDocument> predicate;
+  private final boolean empty;
+
+  private BsonFilterMatcher(Predicate<BsonDocument> predicate, boolean empty) {
+    this.predicate = predicate;
+    this.empty = empty;
+  }
+
+  public static BsonFilterMatcher compile(BsonDocument filter) {
+    if (filter == null || filter.isEmpty()) {
+      return ANY;
+    }
+    return new BsonFilterMatcher(compileDocument(filter), false);
+  }
+
+  /**
+   * @return matcher or null if filter contains unsupported operators
+   */
+  public static BsonFilterMatcher tryCompile(BsonDocument filter) {
+    try {
+      return compile(filter);
+    } catch (UnsupportedFilterException ex) {
+      return null;
+    }
+  }
+
+  public boolean isEmpty() {
+    return empty;
+  }
+
+  public boolean matches(BsonDocument document) {
+    return predicate.test(document);
+  }
+
+  private static Predicate<BsonDocument> compileDocument(BsonDocument filter) {
+    List<Predicate<BsonDocument>> predicates = new ArrayList<>();
+    for (Map.Entry<String, BsonValue> entry : filter.entrySet()) {
+      String key = entry.getKey();
+      BsonValue value = entry.getValue();
+      switch (key) {
+        case "$and" -> {
+          List<Predicate<BsonDocument>> items = compileList(value);
+          predicates.add(document -> items.stream().allMatch(p -> p.test(document)));
+        }
+        case "$or" -> {
+          List<Predicate<BsonDocument>> items = compileList(value);
+          predicates.add(document -> items.stream().anyMatch(p -> p.test(document)));
+        }
+        case "$nor" -> {
+          List<Predicate<BsonDocument>> items = compileList(value);
+          predicates.add(document -> items.stream().noneMatch(p -> p.test(document)));
+        }
+        default -> {
+          if (key.startsWith("$")) {
+            throw new UnsupportedFilterException("Unsupported top level operator: " + key);
+          }
+          String[] path = key.split("\\.");
+          Predicate<List<BsonValue>> fieldPredicate = compileField(value);
+          predicates.add(document -> fieldPredicate.test(resolve(document, path)));
+        }
+      }
+    }
+    if (predicates.size() == 1) {
+      return predicates.get(0);
+    }
+    return document -> {
+      for (Predicate<BsonDocument> predicate : predicates) {
+        if (!predicate.test(document)) {
+          return false;
+        }
+      }
+      return true;
+    };
+  }
+
+  private static List<Predicate<BsonDocument>> compileList(BsonValue value) {
+    if (!value.isArray()) {
+      throw new UnsupportedFilterException("Logical operator requires array");
+    }
+    List<Predicate<BsonDocument>> items = new ArrayList<>();
+    for (BsonValue item : value.asArray()) {
+      if (!item.isDocument()) {
+        throw new UnsupportedFilterException("Logical operator requires array of documents");
+      }
+      items.add(compileDocument(item.asDocument()));
+    }
+    return items;
+  }
+
+  private static boolean isOperatorDocument(BsonValue value) {
+    return value.isDocument() && !value.asDocument().isEmpty()
+      && value.asDocument().getFirstKey().startsWith("$");
+  }
+
+  private static Predicate<List<BsonValue>> compileField(BsonValue condition) {
+    if (condition.isRegularExpression()) {
+      return matchesAny(condition);
+    }
+    if (!isOperatorDocument(condition)) {
+      return values -> equalsAny(values, condition);
+    }
+    BsonDocument operators = condition.asDocument();
+    List<Predicate<List<BsonValue>>> predicates = new ArrayList<>();
+    for (Map.Entry<String, BsonValue> entry : operators.entrySet()) {
+      BsonValue operand = entry.getValue();
+      switch (entry.getKey()) {
+        case "$eq" -> predicates.add(values -> equalsAny(values, operand));
+        case "$ne" -> predicates.add(values -> !equalsAny(values, operand));
+        case "$gt" -> predicates.add(values -> compareAny(values, operand, c -> c > 0));
+        case "$gte" -> predicates.add(values -> compareAny(values, operand, c -> c >= 0));
+        case "$lt" -> predicates.add(values -> compareAny(values, operand, c -> c < 0));
+        case "$lte" -> predicates.add(values -> compareAny(values, operand, c -> c <= 0));
+        case "$in" -> {
+          List<Predicate<List<BsonValue>>> items = compileIn(operand);
+          predicates.add(values -> items.stream().anyMatch(item -> item.test(values)));
+        }
+        case "$nin" -> {
+          List<Predicate<List<BsonValue>>> items = compileIn(operand);
+          predicates.add(values -> items.stream().noneMatch(item -> item.test(values)));
+        }
+        case "$exists" -> {
+          boolean exists = operand.isBoolean() ? operand.asBoolean().getValue()
+            : operand.isNumber() && operand.asNumber().intValue() != 0;
+          predicates.add(values -> !values.isEmpty() == exists);
+        }
+        case "$size" -> {
+          if (!operand.isNumber()) {
+            throw new UnsupportedFilterException("$size requires number");
+          }
+          int size = operand.asNumber().intValue();
+          predicates.add(values -> values.stream().anyMatch(v -> v.isArray() && v.asArray().size() == size));
+        }
+        case "$regex" -> {
+          if (!operand.isString() && !operand.isRegularExpression()) {
+            throw new UnsupportedFilterException("$regex requires string or regular expression");
+          }
+          Pattern pattern = compileRegex(operand, operators.get("$options"));
+          predicates.add(values -> values.stream().anyMatch(v -> v.isString()
+            && pattern.matcher(v.asString().getValue()).find()));
+        }
+        case "$options" -> {
+          if (!operators.containsKey("$regex")) {
+            throw new UnsupportedFilterException("$options without $regex");
+          }
+        }
+        case "$not" -> {
+          if (!operand.isRegularExpression() && !isOperatorDocument(operand)) {
+            throw new UnsupportedFilterException("$not requires regular expression or operator document");
+          }
+          Predicate<List<BsonValue>> inner = compileField(operand);
+          predicates.add(values -> !inner.test(values));
+        }
+        default -> throw new UnsupportedFilterException("Unsupported operator: " + entry.getKey());
+      }
+    }
+    return values -> {
+      for (Predicate<List<BsonValue>> predicate : predicates) {
+        if (!predicate.test(values)) {
+          return false;
+        }
+      }
+      return true;
+    };
+  }
+
+  /**
+   * $in items are compared by equality, regular expression items match string values
+   */
+  private static List<Predicate<List<BsonValue>>> compileIn(BsonValue operand) {
+    if (!operand.isArray()) {
+      throw new UnsupportedFilterException("$in/$nin requires array");
+    }
+    List<Predicate<List<BsonValue>>> items = new ArrayList<>();
+    for (BsonValue item : operand.asArray()) {
+      items.add(item.isRegularExpression() ? matchesAny(item) : values -> equalsAny(values, item));
+    }
+    return items;
+  }
+
+  /**
+   * Regular expression condition matches string values by pattern and regular expression values by equality
+   */
+  private static Predicate<List<BsonValue>> matchesAny(BsonValue regex) {
+    Pattern pattern = compileRegex(regex, null);
+    return values -> values.stream().anyMatch(v -> v.isString() && pattern.matcher(v.asString().getValue()).find()
+      || v.equals(regex));
+  }
+
+  private static Pattern compileRegex(BsonValue operand, BsonValue options) {
+    String regex;
+    String flags = options != null && options.isString() ? options.asString().getValue() : "";
+    if (operand.isRegularExpression()) {
+      regex = operand.asRegularExpression().getPattern();
+      flags += operand.asRegularExpression().getOptions();
+    } else {
+      regex = operand.asString().getValue();
+    }
+    int javaFlags = 0;
+    if (flags.contains("i")) {
+      javaFlags |= Pattern.CASE_INSENSITIVE;
+    }
+    if (flags.contains("m")) {
+      javaFlags |= Pattern.MULTILINE;
+    }
+    if (flags.contains("s")) {
+      javaFlags |= Pattern.DOTALL;
+    }
+    if (flags.contains("x")) {
+      javaFlags |= Pattern.COMMENTS;
+    }
+    try {
+      return Pattern.compile(regex, javaFlags);
+    } catch (PatternSyntaxException ex) {
+      // PCRE syntax that Java doesn't support is evaluated by server
+      throw new UnsupportedFilterException("Unsupported regular expression: " + regex);
+    }
+  }
+
+  /**
+   * Collect all values reachable by path. Arrays on the way are expanded and array at the end of path is returned
+   * together with its items, same as MongoDB does for equality
+   */
+  private static List<BsonValue> resolve(BsonDocument document, String[] path) {
+    List<BsonValue> result = new ArrayList<>(1);
+    collect(document, path, 0, result);
+    return result;
+  }
+
+  private static void collect(BsonValue current, String[] path, int index, List<BsonValue> result) {
+    if (index == path.length) {
+      result.add(current);
+      if (current.isArray()) {
+        result.addAll(current.asArray().getValues());
+      }
+      return;
+    }
+    if (current.isDocument()) {
+      BsonValue next = current.asDocument().get(path[index]);
+      if (next != null) {
+        collect(next, path, index + 1, result);
+      }
+    } else if (current.isArray()) {
+      BsonArray array = current.asArray();
+      if (path[index].chars().allMatch(Character::isDigit)) {
+        int position = Integer.parseInt(path[index]);
+        if (position < array.size()) {
+          collect(array.get(position), path, index + 1, result);
+        }
+      }
+      for (BsonValue item : array) {
+        if (item.isDocument()) {
+          collect(item, path, index, result);
+        }
+      }
+    }
+  }
+
+  private static boolean equalsAny(List<BsonValue> values, BsonValue expected) {
+    if (expected.isNull() && values.isEmpty()) {
+      return true;
+    }
+    for (BsonValue value : values) {
+      if (value.isNumber() && expected.isNumber() || value.isDecimal128() || expected.isDecimal128()) {
+        Integer compared = compare(value, expected);
+        if (compared != null && compared == 0) {
+          return true;
+        }
+      } else if (value.equals(expected)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean compareAny(List<BsonValue> values, BsonValue expected, Predicate<Integer> check) {
+    for (BsonValue value : values) {
+      Integer compared = compare(value, expected);
+      if (compared != null && check.test(compared)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return comparison result or null if values has different type brackets
+   */
+  static Integer compare(BsonValue value, BsonValue expected) {
+    if (isNumeric(value) && isNumeric(expected)) {
+      if (value.isNumber() && expected.isNumber() && (value.isDouble() || expected.isDouble())) {
+        return Double.compare(value.asNumber().doubleValue(), expected.asNumber().doubleValue());
+      }
+      return toDecimal(value).compareTo(toDecimal(expected));
+    }
+    if (value.getBsonType() != expected.getBsonType()) {
+      return null;
+    }
+    return switch (value.getBsonType()) {
+      case STRING -> value.asString().getValue().compareTo(expected.asString().getValue());
+      case DATE_TIME -> Long.compare(value.asDateTime().getValue(), expected.asDateTime().getValue());
+      case OBJECT_ID -> value.asObjectId().getValue().compareTo(expected.asObjectId().getValue());
+      case BOOLEAN -> Boolean.compare(value.asBoolean().getValue(), expected.asBoolean().getValue());
+      case TIMESTAMP -> value.asTimestamp().compareTo(expected.asTimestamp());
+      default -> value.equals(expected) ? 0 : null;
+    };
+  }
+
+  private static boolean isNumeric(BsonValue value) {
+    return value.isNumber() || value.isDecimal128();
+  }
+
+  private static BigDecimal toDecimal(BsonValue value) {
+    if (value.isDecimal128()) {
+      Decimal128 decimal = value.asDecimal128().getValue();
+      return decimal.isNaN() || decimal.isInfinite() ? BigDecimal.ZERO : decimal.bigDecimalValue();
+    }
+    if (value.isDouble()) {
+      double number = value.asDouble().getValue();
+      return Double.isFinite(number) ? BigDecimal.valueOf(number) : BigDecimal.ZERO;
+    }
+    return BigDecimal.valueOf(value.asNumber().longValue());
+  }
+
+  /**
+   * Filter can't be evaluated in memory and has to be evaluated by server
+   */
+  public static class UnsupportedFilterException extends IllegalArgumentException {
+
+    public UnsupportedFilterException(String message) {
+      super(message);
+    }
+  }
+}
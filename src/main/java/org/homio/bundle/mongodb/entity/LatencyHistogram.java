@@ -0,0 +1,84 @@
+package org.homio.bundle.mongodb.entity;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with fixed exponential buckets. Percentiles are estimated as upper bound of the bucket.
+ */
+public class LatencyHistogram {
+
+  private static final double[] BOUNDS_MS = {0.5, 1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000};
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS_MS.length + 1);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private final AtomicLong totalNanos = new AtomicLong();
+  private final AtomicLong maxNanos = new AtomicLong();
+
+  public void record(long nanos, boolean failed) {
+    double millis = nanos / 1_000_000D;
+    int bucket = 0;
+    while (bucket < BOUNDS_MS.length && millis > BOUNDS_MS[bucket]) {
+      bucket++;
+    }
+    buckets.incrementAndGet(bucket);
+    count.incrementAndGet();
+    totalNanos.addAndGet(nanos);
+    maxNanos.accumulateAndGet(nanos, Math::max);
+    if (failed) {
+      errors.incrementAndGet();
+    }
+  }
+
+  public void merge(LatencyHistogram other) {
+    for (int i = 0; i < buckets.length(); i++) {
+      buckets.addAndGet(i, other.buckets.get(i));
+    }
+    count.addAndGet(other.count.get());
+    errors.addAndGet(other.errors.get());
+    totalNanos.addAndGet(other.totalNanos.get());
+    maxNanos.accumulateAndGet(other.maxNanos.get(), Math::max);
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public long getTotalNanos() {
+    return totalNanos.get();
+  }
+
+  public Snapshot snapshot() {
+    long total = count.get();
+    return new Snapshot(total, errors.get(),
+      total == 0 ? 0 : toMillis(totalNanos.get()) / total,
+      toMillis(maxNanos.get()),
+      percentile(total, 0.5), percentile(total, 0.95), percentile(total, 0.99));
+  }
+
+  private double percentile(long total, double quantile) {
+    if (total == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(total * quantile);
+    long seen = 0;
+    for (int i = 0; i < BOUNDS_MS.length; i++) {
+      seen += buckets.get(i);
+      if (seen >= rank) {
+        return BOUNDS_MS[i];
+      }
+    }
+    return toMillis(maxNanos.get());
+  }
+
+  private static double toMillis(long nanos) {
+    return TimeUnit.NANOSECONDS.toMicros(nanos) / 1000D;
+  }
+
+  public record Snapshot(long count, long errors, double avgMillis, double maxMillis, double p50Millis,
+                         double p95Millis, double p99Millis) {
+
+  }
+}
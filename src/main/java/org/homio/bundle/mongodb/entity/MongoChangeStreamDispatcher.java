@@ -0,0 +1,339 @@
+package org.homio.bundle.mongodb.entity;
+
+import com.mongodb.MongoServerException;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.changestream.FullDocument;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.conversions.Bson;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static org.homio.api.util.CommonUtils.getErrorMessage;
+
+/**
+ * Keeps single change stream per collection (or per server-side pipeline) and fans out events to subscribers. Each
+ * subscriber has own bounded queue drained by own virtual thread, so slow subscriber doesn't block the stream unless
+ * {@link OverflowPolicy#Block} is used.
+ */
+@Log4j2
+public class MongoChangeStreamDispatcher {
+
+  private static final long MAX_BACKOFF_MS = 60_000;
+
+  private final MongoCollection<Document> collection;
+  private final List<Bson> pipeline;
+  private final FullDocument fullDocument;
+  private final @Nullable BsonDocument initialToken;
+  private final ExecutorService executor;
+  @Getter
+  private final Set<Subscription> subscriptions = new CopyOnWriteArraySet<>();
+
+  private BsonDocument resumeToken;
+  // initial token may belong to invalidate event, which is allowed only for startAfter
+  private boolean startAfter;
+  private boolean running;
+  // distinguish reader threads between stop/start
+  private long epoch;
+  private volatile MongoCursor<RawBsonDocument> cursor;
+  // completed once cursor of current epoch is open
+  private CompletableFuture<Void> started = new CompletableFuture<>();
+
+  /**
+   * @param initialToken resume token to start stream after, or null to start from now
+   */
+  public MongoChangeStreamDispatcher(MongoCollection<Document> collection, List<Bson> pipeline,
+                                     FullDocument fullDocument, @Nullable BsonDocument initialToken,
+                                     ExecutorService executor) {
+    this.collection = collection;
+    this.pipeline = pipeline;
+    this.fullDocument = fullDocument;
+    this.initialToken = initialToken;
+    this.executor = executor;
+  }
+
+  public String getCollectionName() {
+    return collection.getNamespace().getCollectionName();
+  }
+
+  public Subscription subscribe(SubscriptionRequest request) {
+    Subscription subscription = new Subscription(request);
+    subscription.worker = executor.submit(subscription::drain);
+    synchronized (this) {
+      subscriptions.add(subscription);
+      if (!running) {
+        running = true;
+        resumeToken = initialToken;
+        startAfter = initialToken != null;
+        if (started.isDone()) {
+          started = new CompletableFuture<>();
+        }
+        long currentEpoch = ++epoch;
+        executor.execute(() -> run(currentEpoch));
+      }
+      subscription.started = started;
+    }
+    return subscription;
+  }
+
+  public synchronized void close() {
+    for (Subscription subscription : subscriptions) {
+      subscription.stop();
+    }
+    subscriptions.clear();
+    stopStream();
+  }
+
+  private synchronized void unsubscribe(Subscription subscription) {
+    subscriptions.remove(subscription);
+    if (subscriptions.isEmpty()) {
+      stopStream();
+    }
+  }
+
+  private synchronized void stopStream() {
+    running = false;
+    started.completeExceptionally(new IllegalStateException("Change stream of '" + getCollectionName()
+                                                            + "' stopped before it was open"));
+    var current = cursor;
+    if (current != null) {
+      current.close();
+    }
+  }
+
+  private synchronized boolean isRunning(long readerEpoch) {
+    return running && epoch == readerEpoch;
+  }
+
+  private void run(long readerEpoch) {
+    long backoff = 1000;
+    while (isRunning(readerEpoch)) {
+      try (MongoCursor<RawBsonDocument> current = openCursor()) {
+        if (!attach(current, readerEpoch)) {
+          return;
+        }
+        try {
+          while (isRunning(readerEpoch) && current.hasNext()) {
+            RawBsonDocument event = current.next();
+            dispatch(event);
+            backoff = 1000;
+          }
+        } finally {
+          detach(current);
+        }
+      } catch (MongoServerException ex) {
+        if (ex.getCode() == 40573) {
+          fail(new IllegalStateException("Unable to watch pipeline stream without replica set"));
+          return;
+        }
+        // ChangeStreamHistoryLost / ChangeStreamFatalError
+        if (resumeToken != null && (ex.getCode() == 286 || ex.getCode() == 280)) {
+          fail(new HistoryLostException("Resume point of '" + collection.getNamespace().getCollectionName()
+                                        + "' change stream is no longer in the oplog: " + getErrorMessage(ex)));
+          return;
+        }
+        backoff = retry(ex, backoff, readerEpoch);
+      } catch (Exception ex) {
+        backoff = retry(ex, backoff, readerEpoch);
+      }
+    }
+  }
+
+  /**
+   * Publish cursor so {@link #stopStream()} can close it, unless stream was stopped while cursor was opening
+   */
+  private synchronized boolean attach(MongoCursor<RawBsonDocument> current, long readerEpoch) {
+    if (!isRunning(readerEpoch)) {
+      return false;
+    }
+    cursor = current;
+    started.complete(null);
+    return true;
+  }
+
+  /**
+   * Reader of stopped epoch may finish after reader of new epoch attached own cursor, which must stay closable
+   */
+  private synchronized void detach(MongoCursor<RawBsonDocument> current) {
+    if (cursor == current) {
+      cursor = null;
+    }
+  }
+
+  private MongoCursor<RawBsonDocument> openCursor() {
+    ChangeStreamIterable<Document> stream = collection.watch(pipeline).fullDocument(fullDocument);
+    if (resumeToken != null) {
+      if (startAfter) {
+        stream.startAfter(resumeToken);
+      } else {
+        stream.resumeAfter(resumeToken);
+      }
+    }
+    return stream.withDocumentClass(RawBsonDocument.class).cursor();
+  }
+
+  private void dispatch(RawBsonDocument event) {
+    String operationType = event.getString("operationType").getValue();
+    // stream can't be resumed after invalidate event
+    resumeToken = "invalidate".equals(operationType) ? null : event.getDocument("_id");
+    startAfter = false;
+    for (Subscription subscription : subscriptions) {
+      if (subscription.accepts(operationType, event)) {
+        subscription.offer(event);
+      }
+    }
+  }
+
+  private long retry(Exception ex, long backoff, long readerEpoch) {
+    if (!isRunning(readerEpoch)) {
+      return backoff;
+    }
+    log.warn("Change stream of '{}' failed. Reconnect in {}ms: {}",
+      collection.getNamespace().getCollectionName(), backoff, getErrorMessage(ex));
+    try {
+      Thread.sleep(backoff);
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      stopStream();
+    }
+    return Math.min(backoff * 2, MAX_BACKOFF_MS);
+  }
+
+  private synchronized void fail(Exception ex) {
+    for (Subscription subscription : subscriptions) {
+      subscription.request.errorHandler().accept(ex);
+      subscription.stop();
+    }
+    subscriptions.clear();
+    running = false;
+    started.completeExceptionally(ex);
+  }
+
+  /**
+   * Stream can't be resumed from saved token anymore
+   */
+  public static class HistoryLostException extends IllegalStateException {
+
+    public HistoryLostException(String message) {
+      super(message);
+    }
+  }
+
+  public enum OverflowPolicy {
+    DropOldest, DropNewest, Block
+  }
+
+  /**
+   * @param operationTypes change stream operation types or null for any
+   * @param matcher        filter evaluated against change event document
+   * @param onHandled      receives resume token of every successfully handled event. nullable
+   */
+  public record SubscriptionRequest(Set<String> operationTypes, BsonFilterMatcher matcher, int queueSize,
+                                    OverflowPolicy overflowPolicy, Consumer<RawBsonDocument> handler,
+                                    Consumer<Exception> errorHandler, Consumer<BsonDocument> onHandled) {
+
+  }
+
+  public class Subscription implements AutoCloseable {
+
+    private final SubscriptionRequest request;
+    private final BlockingQueue<RawBsonDocument> queue;
+    @Getter
+    private final AtomicLong dropped = new AtomicLong();
+    private Future<?> worker;
+    private CompletableFuture<Void> started;
+    private volatile boolean stopped;
+
+    private Subscription(SubscriptionRequest request) {
+      this.request = request;
+      this.queue = new ArrayBlockingQueue<>(Math.max(1, request.queueSize()));
+    }
+
+    /**
+     * @return completed once change stream cursor is open, changes made afterward are delivered to subscriber.
+     * Completed exceptionally if stream fails or stops before that
+     */
+    public CompletableFuture<Void> getStarted() {
+      return started;
+    }
+
+    @Override
+    public void close() {
+      unsubscribe(this);
+      stop();
+    }
+
+    private void stop() {
+      stopped = true;
+      if (worker != null) {
+        worker.cancel(true);
+      }
+    }
+
+    private boolean accepts(String operationType, RawBsonDocument event) {
+      return (request.operationTypes() == null || request.operationTypes().contains(operationType))
+        && request.matcher().matches(event);
+    }
+
+    private void offer(RawBsonDocument event) {
+      switch (request.overflowPolicy()) {
+        case DropNewest -> {
+          if (!queue.offer(event)) {
+            dropped.incrementAndGet();
+          }
+        }
+        case DropOldest -> {
+          while (!queue.offer(event)) {
+            if (queue.poll() != null) {
+              dropped.incrementAndGet();
+            }
+          }
+        }
+        case Block -> {
+          try {
+            boolean offered = false;
+            while (!stopped && !offered) {
+              offered = queue.offer(event, 100, TimeUnit.MILLISECONDS);
+            }
+          } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      }
+    }
+
+    private void drain() {
+      try {
+        while (!Thread.currentThread().isInterrupted()) {
+          RawBsonDocument event = queue.take();
+          try {
+            request.handler().accept(event);
+            if (request.onHandled() != null) {
+              request.onHandled().accept(event.getDocument("_id"));
+            }
+          } catch (Exception ex) {
+            log.error("Error while handle change event of '{}': {}",
+              collection.getNamespace().getCollectionName(), getErrorMessage(ex));
+          }
+        }
+      } catch (InterruptedException ignore) {
+      }
+    }
+  }
+}
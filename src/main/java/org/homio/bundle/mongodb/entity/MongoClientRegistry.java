@@ -0,0 +1,145 @@
+package org.homio.bundle.mongodb.entity;
+
+import com.mongodb.client.MongoClient;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import org.jetbrains.annotations.Nullable;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shares MongoClient instances between services and UI loaders with same connection identity. Clients are reference
+ * counted and closed after {@link #IDLE_TIMEOUT} without leases. Evictor thread starts with first lease and is stopped
+ * together with remaining clients by {@link #shutdown()} when addon is unloaded.
+ */
+@Log4j2
+public final class MongoClientRegistry {
+
+  private static final Duration IDLE_TIMEOUT = Duration.ofMinutes(2);
+  private static final Map<Long, Entry> CLIENTS = new HashMap<>();
+  private static @Nullable ScheduledExecutorService evictor;
+
+  private MongoClientRegistry() {
+  }
+
+  public static Lease acquire(MongoDBEntity entity) {
+    long key = entity.getConnectionHashCode();
+    synchronized (CLIENTS) {
+      if (evictor == null) {
+        evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+          Thread thread = new Thread(runnable, "mongodb-client-evictor");
+          thread.setDaemon(true);
+          return thread;
+        });
+        evictor.scheduleWithFixedDelay(MongoClientRegistry::evictIdle, 1, 1, TimeUnit.MINUTES);
+      }
+      Entry entry = CLIENTS.computeIfAbsent(key, k -> {
+        MongoPoolStats poolStats = new MongoPoolStats();
+        MongoCommandStats commandStats = new MongoCommandStats();
+        MongoHealthMonitor health = new MongoHealthMonitor();
+        return new Entry(MongoDBService.createMongoClient(entity, poolStats, commandStats, health), poolStats,
+          commandStats, health);
+      });
+      entry.references++;
+      return new Lease(entry);
+    }
+  }
+
+  /**
+   * Stop evictor and close every client, including leased ones. Static state outlives addon otherwise and holds its
+   * classloader
+   */
+  public static void shutdown() {
+    synchronized (CLIENTS) {
+      if (evictor != null) {
+        evictor.shutdownNow();
+        evictor = null;
+      }
+      CLIENTS.values().forEach(MongoClientRegistry::close);
+      CLIENTS.clear();
+    }
+  }
+
+  private static void release(Entry entry) {
+    synchronized (CLIENTS) {
+      if (--entry.references == 0) {
+        entry.idleSince = System.currentTimeMillis();
+      }
+    }
+  }
+
+  private static void evictIdle() {
+    long now = System.currentTimeMillis();
+    synchronized (CLIENTS) {
+      for (Iterator<Entry> iterator = CLIENTS.values().iterator(); iterator.hasNext(); ) {
+        Entry entry = iterator.next();
+        if (entry.references == 0 && now - entry.idleSince > IDLE_TIMEOUT.toMillis()) {
+          iterator.remove();
+          close(entry);
+        }
+      }
+    }
+  }
+
+  private static void close(Entry entry) {
+    try {
+      entry.client.close();
+    } catch (Exception ex) {
+      log.warn("Error while close mongo client", ex);
+    }
+  }
+
+  private static class Entry {
+
+    private final MongoClient client;
+    private final MongoPoolStats poolStats;
+    private final MongoCommandStats commandStats;
+    private final MongoHealthMonitor health;
+    private int references;
+    private long idleSince;
+
+    private Entry(MongoClient client, MongoPoolStats poolStats, MongoCommandStats commandStats,
+                  MongoHealthMonitor health) {
+      this.client = client;
+      this.poolStats = poolStats;
+      this.commandStats = commandStats;
+      this.health = health;
+    }
+  }
+
+  public static class Lease implements AutoCloseable {
+
+    private final Entry entry;
+    @Getter
+    private final MongoClient client;
+    @Getter
+    private final MongoPoolStats poolStats;
+    @Getter
+    private final MongoCommandStats commandStats;
+    @Getter
+    private final MongoHealthMonitor health;
+    private boolean released;
+
+    private Lease(Entry entry) {
+      this.entry = entry;
+      this.client = entry.client;
+      this.poolStats = entry.poolStats;
+      this.commandStats = entry.commandStats;
+      this.health = entry.health;
+    }
+
+    @Override
+    public synchronized void close() {
+      if (!released) {
+        released = true;
+        release(entry);
+      }
+    }
+  }
+}
@@ -0,0 +1,176 @@
+package org.homio.bundle.mongodb.entity;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import lombok.extern.log4j.Log4j2;
+import org.bson.Document;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+
+import static java.util.Collections.singletonList;
+import static org.homio.api.util.CommonUtils.getErrorMessage;
+
+/**
+ * In-memory list of collection names of service database. Answers from memory and reloads in background when TTL is
+ * expired, when collection is created/dropped from blocks or when database change stream reports create/drop/rename.
+ * Every change starts new load, result of load started before the change is not published.
+ */
+@Log4j2
+public class MongoCollectionCatalog {
+
+  private static final Duration TTL = Duration.ofMinutes(5);
+  private static final long MAX_BACKOFF_MS = 60_000;
+
+  private final MongoDatabase database;
+  private final ExecutorService executor;
+
+  private volatile List<String> names;
+  private volatile long loadedAt;
+  private CompletableFuture<List<String>> loading;
+  // incremented on every known change of collections
+  private long generation;
+  private long loadingGeneration;
+  private volatile MongoChangeStreamCursor<ChangeStreamDocument<Document>> watchCursor;
+  private volatile boolean closed;
+
+  public MongoCollectionCatalog(MongoDatabase database, ExecutorService executor) {
+    this.database = database;
+    this.executor = executor;
+  }
+
+  public void start() {
+    refresh();
+    executor.execute(this::watchDatabase);
+  }
+
+  /**
+   * @return cached names (stale names are returned while reloading) or future of first load
+   */
+  public CompletableFuture<List<String>> getNames() {
+    List<String> current = names;
+    if (current == null || System.currentTimeMillis() - loadedAt > TTL.toMillis()) {
+      CompletableFuture<List<String>> future = refresh();
+      if (current == null) {
+        return future;
+      }
+    }
+    return CompletableFuture.completedFuture(current);
+  }
+
+  public synchronized CompletableFuture<List<String>> refresh() {
+    if (loading == null || loading.isDone() || loadingGeneration != generation) {
+      long started = generation;
+      loadingGeneration = started;
+      loading = CompletableFuture.supplyAsync(() -> load(started), executor);
+    }
+    return loading;
+  }
+
+  public void added(String collection) {
+    update(collection, true);
+  }
+
+  public void removed(String collection) {
+    update(collection, false);
+  }
+
+  public void close() {
+    closed = true;
+    var cursor = watchCursor;
+    if (cursor != null) {
+      cursor.close();
+    }
+  }
+
+  private synchronized void update(String collection, boolean add) {
+    generation++;
+    List<String> current = names;
+    if (current != null) {
+      List<String> updated = new ArrayList<>(current);
+      updated.remove(collection);
+      if (add) {
+        updated.add(collection);
+        Collections.sort(updated);
+      }
+      names = Collections.unmodifiableList(updated);
+    }
+    refresh();
+  }
+
+  private synchronized void changed() {
+    generation++;
+    loadedAt = 0;
+    refresh();
+  }
+
+  private List<String> load(long startedGeneration) {
+    List<String> loaded = database.listCollectionNames().into(new ArrayList<>());
+    Collections.sort(loaded);
+    List<String> result = Collections.unmodifiableList(loaded);
+    synchronized (this) {
+      // collection created or dropped while loading may be missing in result
+      if (startedGeneration == generation) {
+        names = result;
+        loadedAt = System.currentTimeMillis();
+      }
+    }
+    return result;
+  }
+
+  private void watchDatabase() {
+    var pipeline = singletonList(Aggregates.match(
+      Filters.in("operationType", "create", "drop", "rename", "dropDatabase", "invalidate")));
+    long backoff = 1000;
+    boolean reconnect = false;
+    while (!closed) {
+      try (var cursor = database.watch(pipeline).showExpandedEvents(true).cursor()) {
+        watchCursor = cursor;
+        if (closed) {
+          return;
+        }
+        if (reconnect) {
+          // changes made while stream was down are unknown
+          changed();
+        }
+        while (!closed && cursor.hasNext()) {
+          cursor.next();
+          backoff = 1000;
+          changed();
+        }
+      } catch (MongoCommandException ex) {
+        if (ex.getCode() == 40573) {
+          // no replica set, TTL refresh only
+          return;
+        }
+        backoff = retry(ex, backoff);
+      } catch (Exception ex) {
+        backoff = retry(ex, backoff);
+      }
+      reconnect = true;
+    }
+  }
+
+  private long retry(Exception ex, long backoff) {
+    if (closed) {
+      return backoff;
+    }
+    log.warn("Collections watch of '{}' failed. Reconnect in {}ms: {}", database.getName(), backoff,
+      getErrorMessage(ex));
+    try {
+      Thread.sleep(backoff);
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      closed = true;
+    }
+    return Math.min(backoff * 2, MAX_BACKOFF_MS);
+  }
+}
@@ -0,0 +1,267 @@
+package org.homio.bundle.mongodb.entity;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.InsertManyOptions;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.bson.BsonDocument;
+import org.bson.RawBsonDocument;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.LongConsumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streams collections to local files and back. Export reads documents from cursor as raw BSON bytes: BSON format
+ * writes these bytes to file channel as is (same layout as mongodump .bson), NDJSON converts bytes straight to
+ * canonical extended JSON without building Document, so number types survive import. Import inserts batches with
+ * unordered insertMany and skips duplicate _id, so interrupted import may be repeated. Memory use is bounded by one
+ * batch.
+ */
+public final class MongoCollectionTransfer {
+
+  private static final int CURSOR_BATCH_SIZE = 1000;
+  private static final int IMPORT_BATCH_SIZE = 1000;
+  private static final int IMPORT_BATCH_BYTES = 8 * 1024 * 1024;
+  private static final int BUFFER_SIZE = 64 * 1024;
+  // 16MB server BSON limit plus internal overhead mongodump allows, larger length prefix means corrupted file
+  private static final int MAX_DOCUMENT_SIZE = 16 * 1024 * 1024 + 16 * 1024;
+  private static final int DUPLICATE_KEY = 11000;
+  private static final JsonWriterSettings JSON = JsonWriterSettings.builder().outputMode(JsonMode.EXTENDED).build();
+  private static final ByteBuffer NEW_LINE = ByteBuffer.wrap(new byte[]{'\n'});
+
+  private MongoCollectionTransfer() {
+  }
+
+  /**
+   * @param progress receives number of exported documents every cursor batch
+   * @return exported documents
+   */
+  public static long export(MongoDatabase database, String collection, BsonDocument filter, Path file, Format format,
+                            FileCompression compression, LongConsumer progress) throws IOException {
+    try (MongoCursor<RawBsonDocument> cursor = database.getCollection(collection)
+      .find(filter, RawBsonDocument.class).batchSize(CURSOR_BATCH_SIZE).iterator()) {
+      return export(cursor, file, format, compression, progress);
+    }
+  }
+
+  /**
+   * Export documents of already opened cursor or partitioned scan. Caller closes source
+   */
+  public static long export(Iterator<RawBsonDocument> documents, Path file, Format format,
+                            FileCompression compression, LongConsumer progress) throws IOException {
+    Files.createDirectories(file.toAbsolutePath().getParent());
+    long count = 0;
+    try (WritableByteChannel channel = openWrite(file, compression)) {
+      while (documents.hasNext()) {
+        RawBsonDocument document = documents.next();
+        if (format == Format.Bson) {
+          writeFully(channel, document.getByteBuffer().asNIO());
+        } else {
+          writeFully(channel, ByteBuffer.wrap(document.toJson(JSON).getBytes(StandardCharsets.UTF_8)));
+          writeFully(channel, NEW_LINE.duplicate());
+        }
+        if (++count % CURSOR_BATCH_SIZE == 0) {
+          progress.accept(count);
+        }
+      }
+    }
+    progress.accept(count);
+    return count;
+  }
+
+  public static String fileName(String collection, Format format, FileCompression compression) {
+    return collection + format.extension + compression.extension;
+  }
+
+  /**
+   * @return collection name of file created by export or null if file has unknown extension
+   */
+  public static @Nullable String collectionName(String fileName) {
+    String baseName = fileName.substring(0, fileName.length() - FileCompression.of(fileName).extension.length());
+    for (Format format : Format.values()) {
+      if (baseName.endsWith(format.extension) && baseName.length() > format.extension.length()) {
+        return baseName.substring(0, baseName.length() - format.extension.length());
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Format and compression are detected by file name: *.bson, any other name is read as NDJSON. Optional .gz or .zst
+   * suffix selects decompression
+   *
+   * @param progress receives number of imported documents every batch
+   * @return inserted documents, excluding skipped duplicates
+   */
+  public static long importFile(MongoDatabase database, String collection, Path file, LongConsumer progress)
+    throws IOException {
+    String name = file.getFileName().toString();
+    FileCompression compression = FileCompression.of(name);
+    String baseName = name.substring(0, name.length() - compression.extension.length());
+    MongoCollection<RawBsonDocument> target = database.getCollection(collection, RawBsonDocument.class);
+    Batch batch = new Batch(target, progress);
+    try (ReadableByteChannel channel = openRead(file, compression)) {
+      if (baseName.endsWith(Format.Bson.extension)) {
+        ByteBuffer length = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        while (readFully(channel, length.clear(), true)) {
+          int size = length.getInt(0);
+          if (size < 5 || size > MAX_DOCUMENT_SIZE) {
+            throw new IOException("Corrupted BSON file " + file + ": document size " + size);
+          }
+          ByteBuffer bytes = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN).putInt(size);
+          readFully(channel, bytes, false);
+          batch.add(new RawBsonDocument(bytes.array()));
+        }
+      } else {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel),
+          StandardCharsets.UTF_8), BUFFER_SIZE);
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (!line.isBlank()) {
+            batch.add(RawBsonDocument.parse(line));
+          }
+        }
+      }
+    }
+    batch.flush();
+    return batch.inserted;
+  }
+
+  private static WritableByteChannel openWrite(Path file, FileCompression compression) throws IOException {
+    if (compression == FileCompression.None) {
+      return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+    }
+    OutputStream out = Files.newOutputStream(file);
+    return Channels.newChannel(compression == FileCompression.Gzip
+      ? new GZIPOutputStream(out, BUFFER_SIZE)
+      : new ZstdOutputStream(out));
+  }
+
+  private static ReadableByteChannel openRead(Path file, FileCompression compression) throws IOException {
+    if (compression == FileCompression.None) {
+      return FileChannel.open(file, StandardOpenOption.READ);
+    }
+    InputStream in = Files.newInputStream(file);
+    return Channels.newChannel(compression == FileCompression.Gzip
+      ? new GZIPInputStream(in, BUFFER_SIZE)
+      : new ZstdInputStream(in));
+  }
+
+  private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  /**
+   * @param eofAllowed whether end of file before first byte is normal end of data
+   * @return false on end of file
+   */
+  private static boolean readFully(ReadableByteChannel channel, ByteBuffer buffer, boolean eofAllowed)
+    throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0) {
+        if (eofAllowed && buffer.position() == 0) {
+          return false;
+        }
+        throw new EOFException("Unexpected end of BSON file");
+      }
+    }
+    return true;
+  }
+
+  @Getter
+  @RequiredArgsConstructor
+  public enum Format {
+    Ndjson(".ndjson"), Bson(".bson");
+
+    private final String extension;
+  }
+
+  @Getter
+  @RequiredArgsConstructor
+  public enum FileCompression {
+    None(""), Gzip(".gz"), Zstd(".zst");
+
+    private final String extension;
+
+    private static FileCompression of(String fileName) {
+      if (fileName.endsWith(Gzip.extension)) {
+        return Gzip;
+      }
+      return fileName.endsWith(Zstd.extension) ? Zstd : None;
+    }
+  }
+
+  private static class Batch {
+
+    private final MongoCollection<RawBsonDocument> collection;
+    private final LongConsumer progress;
+    private final List<RawBsonDocument> documents = new ArrayList<>(IMPORT_BATCH_SIZE);
+    private int bytes;
+    private long inserted;
+
+    private Batch(MongoCollection<RawBsonDocument> collection, LongConsumer progress) {
+      this.collection = collection;
+      this.progress = progress;
+    }
+
+    private void add(RawBsonDocument document) {
+      documents.add(document);
+      bytes += document.getByteBuffer().remaining();
+      if (documents.size() >= IMPORT_BATCH_SIZE || bytes >= IMPORT_BATCH_BYTES) {
+        flush();
+      }
+    }
+
+    private void flush() {
+      if (documents.isEmpty()) {
+        return;
+      }
+      try {
+        collection.insertMany(documents, new InsertManyOptions().ordered(false));
+        inserted += documents.size();
+      } catch (MongoBulkWriteException ex) {
+        for (BulkWriteError error : ex.getWriteErrors()) {
+          if (error.getCode() != DUPLICATE_KEY) {
+            throw ex;
+          }
+        }
+        inserted += ex.getWriteResult().getInsertedCount();
+      }
+      documents.clear();
+      bytes = 0;
+      progress.accept(inserted);
+    }
+  }
+}
@@ -0,0 +1,182 @@
+package org.homio.bundle.mongodb.entity;
+
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.log4j.Log4j2;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Command latency of one MongoClient grouped by command name, collection and origin. Origin is set by caller with
+ * {@link #setOrigin(String)} - sync driver publishes command events on caller thread, so thread local is enough.
+ */
+@Log4j2
+public class MongoCommandStats implements CommandListener {
+
+  public static final String UNTAGGED = "-";
+  /**
+   * Origins beyond this limit are folded into one bucket, block ids of deleted workspaces must not pile up
+   */
+  public static final String OTHER = "*";
+  private static final int MAX_ORIGINS = 200;
+  private static final int MAX_SLOW_COMMANDS = 50;
+  private static final long SLOW_LOG_INTERVAL_MS = TimeUnit.SECONDS.toMillis(10);
+  private static final ThreadLocal<String> ORIGIN = new ThreadLocal<>();
+
+  private final Map<Integer, Started> started = new ConcurrentHashMap<>();
+  private final Map<String, LatencyHistogram> byCommand = new ConcurrentHashMap<>();
+  private final Map<String, LatencyHistogram> byCollection = new ConcurrentHashMap<>();
+  private final Map<String, LatencyHistogram> byOrigin = new ConcurrentHashMap<>();
+  private final Deque<SlowCommand> slowCommands = new ArrayDeque<>();
+  @Getter
+  private final AtomicLong slowCount = new AtomicLong();
+  private final AtomicLong lastSlowLog = new AtomicLong();
+  private final AtomicLong suppressedSlowLogs = new AtomicLong();
+  @Getter
+  @Setter
+  private volatile long slowThresholdMillis = 100;
+
+  /**
+   * Attribute commands issued by current thread to origin, e.g. workspace block id. Null resets origin
+   */
+  public static void setOrigin(String origin) {
+    if (origin == null) {
+      ORIGIN.remove();
+    } else {
+      ORIGIN.set(origin);
+    }
+  }
+
+  public static String getOrigin() {
+    return ORIGIN.get();
+  }
+
+  @Override
+  public void commandStarted(CommandStartedEvent event) {
+    String origin = ORIGIN.get();
+    started.put(event.getRequestId(), new Started(getCollection(event.getCommandName(), event.getCommand()),
+      origin == null ? UNTAGGED : origin));
+  }
+
+  @Override
+  public void commandSucceeded(CommandSucceededEvent event) {
+    record(event.getRequestId(), event.getCommandName(), event.getElapsedTime(TimeUnit.NANOSECONDS), false);
+  }
+
+  @Override
+  public void commandFailed(CommandFailedEvent event) {
+    record(event.getRequestId(), event.getCommandName(), event.getElapsedTime(TimeUnit.NANOSECONDS), true);
+  }
+
+  public LatencyHistogram.Snapshot getTotal() {
+    LatencyHistogram total = new LatencyHistogram();
+    byCommand.values().forEach(total::merge);
+    return total.snapshot();
+  }
+
+  /**
+   * @return origin with highest total command time or null if nothing recorded
+   */
+  public Map.Entry<String, LatencyHistogram> getBusiestOrigin() {
+    return byOrigin.entrySet().stream()
+      .max(Comparator.comparingLong(e -> e.getValue().getTotalNanos()))
+      .orElse(null);
+  }
+
+  public Report getReport() {
+    List<SlowCommand> slow;
+    synchronized (slowCommands) {
+      slow = new ArrayList<>(slowCommands);
+    }
+    return new Report(slowThresholdMillis, slowCount.get(), snapshot(byCommand), snapshot(byCollection),
+      snapshot(byOrigin), slow);
+  }
+
+  private void record(int requestId, String commandName, long nanos, boolean failed) {
+    Started start = started.remove(requestId);
+    String collection = start == null ? "" : start.collection();
+    String origin = start == null ? UNTAGGED : start.origin();
+
+    byCommand.computeIfAbsent(commandName, k -> new LatencyHistogram()).record(nanos, failed);
+    if (!collection.isEmpty()) {
+      byCollection.computeIfAbsent(collection, k -> new LatencyHistogram()).record(nanos, failed);
+    }
+    if (!byOrigin.containsKey(origin) && byOrigin.size() >= MAX_ORIGINS) {
+      origin = OTHER;
+    }
+    byOrigin.computeIfAbsent(origin, k -> new LatencyHistogram()).record(nanos, failed);
+
+    double millis = TimeUnit.NANOSECONDS.toMicros(nanos) / 1000D;
+    if (millis >= slowThresholdMillis) {
+      slowCount.incrementAndGet();
+      logSlowCommand(commandName, collection, origin, millis, failed);
+      synchronized (slowCommands) {
+        if (slowCommands.size() == MAX_SLOW_COMMANDS) {
+          slowCommands.removeFirst();
+        }
+        slowCommands.addLast(
+          new SlowCommand(System.currentTimeMillis(), commandName, collection, origin, millis, failed));
+      }
+    }
+  }
+
+  /**
+   * At most one warning per interval, slow commands in between are only counted. They are still recorded in
+   * {@link #getReport()}
+   */
+  private void logSlowCommand(String commandName, String collection, String origin, double millis, boolean failed) {
+    long now = System.currentTimeMillis();
+    long last = lastSlowLog.get();
+    if (now - last < SLOW_LOG_INTERVAL_MS || !lastSlowLog.compareAndSet(last, now)) {
+      suppressedSlowLogs.incrementAndGet();
+      return;
+    }
+    long suppressed = suppressedSlowLogs.getAndSet(0);
+    log.warn("Slow MongoDB command {} on '{}' from {}: {}ms{}{}", commandName, collection, origin, millis,
+      failed ? " (failed)" : "", suppressed == 0 ? "" : " (+" + suppressed + " slow commands not logged)");
+  }
+
+  private static String getCollection(String commandName, BsonDocument command) {
+    // command document is released after listener returns, so collection must be extracted here
+    BsonValue value = "getMore".equals(commandName) ? command.get("collection") : command.get(commandName);
+    return value != null && value.isString() ? value.asString().getValue() : "";
+  }
+
+  private static Map<String, LatencyHistogram.Snapshot> snapshot(Map<String, LatencyHistogram> histograms) {
+    Map<String, LatencyHistogram.Snapshot> result = new LinkedHashMap<>();
+    histograms.entrySet().stream()
+      .sorted(Comparator.comparingLong(e -> -e.getValue().getTotalNanos()))
+      .forEach(e -> result.put(e.getKey(), e.getValue().snapshot()));
+    return result;
+  }
+
+  private record Started(String collection, String origin) {
+
+  }
+
+  public record SlowCommand(long timestamp, String command, String collection, String origin, double millis,
+                            boolean failed) {
+
+  }
+
+  public record Report(long slowThresholdMillis, long slowCount, Map<String, LatencyHistogram.Snapshot> commands,
+                       Map<String, LatencyHistogram.Snapshot> collections,
+                       Map<String, LatencyHistogram.Snapshot> origins, List<SlowCommand> slowCommands) {
+
+  }
+}
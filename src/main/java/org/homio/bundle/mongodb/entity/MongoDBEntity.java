@@ -1,12 +1,16 @@
 package org.homio.bundle.mongodb.entity;
 
-import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoDatabase;
 import jakarta.persistence.Entity;
+import jakarta.validation.constraints.Max;
+import jakarta.validation.constraints.Min;
 import jakarta.validation.constraints.Pattern;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.experimental.Accessors;
 import org.apache.commons.lang3.SystemUtils;
+import org.bson.BsonDocument;
+import org.bson.RawBsonDocument;
 import org.homio.api.Context;
 import org.homio.api.entity.log.HasEntityLog;
 import org.homio.api.entity.types.StorageEntity;
@@ -22,11 +26,16 @@ import org.homio.api.ui.field.selection.dynamic.DynamicOptionLoader;
 import org.homio.api.ui.field.selection.dynamic.UIFieldDynamicSelection;
 import org.homio.api.util.Lang;
 import org.homio.api.util.SecureString;
+import org.homio.bundle.mongodb.codec.JsonNodeCodec;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.Stream;
 
 import static org.apache.commons.lang3.StringUtils.isEmpty;
 
@@ -89,6 +98,494 @@ public class MongoDBEntity extends StorageEntity implements
     setJsonData("db", value);
   }
 
+  @UIField(order = 51)
+  @Min(1)
+  @Max(1000)
+  public int getMaxPoolSize() {
+    return getJsonData("pmax", 100);
+  }
+
+  public void setMaxPoolSize(int value) {
+    setJsonData("pmax", value);
+  }
+
+  @UIField(order = 52)
+  @Min(0)
+  @Max(1000)
+  public int getMinPoolSize() {
+    return getJsonData("pmin", 0);
+  }
+
+  public void setMinPoolSize(int value) {
+    setJsonData("pmin", value);
+  }
+
+  @UIField(order = 53)
+  @Min(0)
+  public int getMaxWaitTime() {
+    return getJsonData("pwait", 120000);
+  }
+
+  public void setMaxWaitTime(int value) {
+    setJsonData("pwait", value);
+  }
+
+  @UIField(order = 54)
+  @Min(0)
+  public int getMaxConnectionIdleTime() {
+    return getJsonData("pidle", 0);
+  }
+
+  public void setMaxConnectionIdleTime(int value) {
+    setJsonData("pidle", value);
+  }
+
+  @UIField(order = 55)
+  @Min(0)
+  public int getConnectTimeout() {
+    return getJsonData("tconn", 10000);
+  }
+
+  public void setConnectTimeout(int value) {
+    setJsonData("tconn", value);
+  }
+
+  @UIField(order = 56)
+  @Min(0)
+  public int getSocketTimeout() {
+    return getJsonData("tsock", 0);
+  }
+
+  public void setSocketTimeout(int value) {
+    setJsonData("tsock", value);
+  }
+
+  @UIField(order = 57)
+  @Min(0)
+  public int getServerSelectionTimeout() {
+    return getJsonData("tsel", 30000);
+  }
+
+  public void setServerSelectionTimeout(int value) {
+    setJsonData("tsel", value);
+  }
+
+  @UIField(order = 58)
+  public Compression getCompression() {
+    return getJsonDataEnum("comp", Compression.None);
+  }
+
+  public void setCompression(Compression value) {
+    setJsonData("comp", value);
+  }
+
+  @UIField(order = 59)
+  public ConnectMode getConnectMode() {
+    return getJsonDataEnum("conm", ConnectMode.Background);
+  }
+
+  public void setConnectMode(ConnectMode value) {
+    setJsonData("conm", value);
+  }
+
+  @UIField(order = 60)
+  public boolean isWriteBehind() {
+    return getJsonData("wb", false);
+  }
+
+  public void setWriteBehind(boolean value) {
+    setJsonData("wb", value);
+  }
+
+  @UIField(order = 61)
+  @Min(1)
+  @Max(10000)
+  public int getWriteBehindBatchSize() {
+    return getJsonData("wbbs", 500);
+  }
+
+  public void setWriteBehindBatchSize(int value) {
+    setJsonData("wbbs", value);
+  }
+
+  @UIField(order = 62)
+  @Min(10)
+  @Max(60000)
+  public int getWriteBehindMaxDelay() {
+    return getJsonData("wbmd", 200);
+  }
+
+  public void setWriteBehindMaxDelay(int value) {
+    setJsonData("wbmd", value);
+  }
+
+  @UIField(order = 63)
+  @Min(100)
+  @Max(1000000)
+  public int getWriteBehindQueueSize() {
+    return getJsonData("wbqs", 10000);
+  }
+
+  public void setWriteBehindQueueSize(int value) {
+    setJsonData("wbqs", value);
+  }
+
+  @UIField(order = 70)
+  public JsonNodeCodec.ObjectIdMode getJsonObjectIdMode() {
+    return getJsonDataEnum("jsoid", JsonNodeCodec.ObjectIdMode.Extended);
+  }
+
+  public void setJsonObjectIdMode(JsonNodeCodec.ObjectIdMode value) {
+    setJsonData("jsoid", value);
+  }
+
+  @UIField(order = 71)
+  public JsonNodeCodec.DateMode getJsonDateMode() {
+    return getJsonDataEnum("jsdate", JsonNodeCodec.DateMode.Extended);
+  }
+
+  public void setJsonDateMode(JsonNodeCodec.DateMode value) {
+    setJsonData("jsdate", value);
+  }
+
+  @UIField(order = 72)
+  public JsonNodeCodec.DecimalMode getJsonDecimalMode() {
+    return getJsonDataEnum("jsdec", JsonNodeCodec.DecimalMode.Extended);
+  }
+
+  public void setJsonDecimalMode(JsonNodeCodec.DecimalMode value) {
+    setJsonData("jsdec", value);
+  }
+
+  @UIField(order = 80)
+  @Min(1)
+  @Max(100000)
+  public int getWatchQueueSize() {
+    return getJsonData("wqs", 1000);
+  }
+
+  public void setWatchQueueSize(int value) {
+    setJsonData("wqs", value);
+  }
+
+  @UIField(order = 81)
+  public MongoChangeStreamDispatcher.OverflowPolicy getWatchOverflowPolicy() {
+    return getJsonDataEnum("wop", MongoChangeStreamDispatcher.OverflowPolicy.DropOldest);
+  }
+
+  public void setWatchOverflowPolicy(MongoChangeStreamDispatcher.OverflowPolicy value) {
+    setJsonData("wop", value);
+  }
+
+  @UIField(order = 82)
+  @Min(1)
+  @Max(100000)
+  public int getCheckpointEvents() {
+    return getJsonData("cpe", 100);
+  }
+
+  public void setCheckpointEvents(int value) {
+    setJsonData("cpe", value);
+  }
+
+  @UIField(order = 83)
+  @Min(100)
+  @Max(600000)
+  public int getCheckpointInterval() {
+    return getJsonData("cpi", 5000);
+  }
+
+  public void setCheckpointInterval(int value) {
+    setJsonData("cpi", value);
+  }
+
+  @UIField(order = 90)
+  @Min(1)
+  public int getSlowCommandThreshold() {
+    return getJsonData("slowms", 100);
+  }
+
+  public void setSlowCommandThreshold(int value) {
+    setJsonData("slowms", value);
+  }
+
+  @UIField(order = 91)
+  public boolean isAsyncMode() {
+    return getJsonData("async", false);
+  }
+
+  public void setAsyncMode(boolean value) {
+    setJsonData("async", value);
+  }
+
+  @UIField(order = 92)
+  @Min(100)
+  @Max(600000)
+  public int getAsyncTimeout() {
+    return getJsonData("asynct", 5000);
+  }
+
+  public void setAsyncTimeout(int value) {
+    setJsonData("asynct", value);
+  }
+
+  /**
+   * Max concurrent range cursors of partitioned scans, see {@link MongoPartitionedScan}
+   */
+  @UIField(order = 95)
+  @Min(1)
+  @Max(32)
+  public int getScanParallelism() {
+    return getJsonData("spar", 4);
+  }
+
+  public void setScanParallelism(int value) {
+    setJsonData("spar", value);
+  }
+
+  @UIField(order = 100)
+  public String getHistorySources() {
+    return getJsonData("hsrc", "");
+  }
+
+  /**
+   * @param value comma separated variable/device ids to record into history collection
+   */
+  public void setHistorySources(String value) {
+    setJsonData("hsrc", value);
+  }
+
+  @UIField(order = 101)
+  public String getHistoryCollection() {
+    return getJsonData("hcoll", "homio_history");
+  }
+
+  public void setHistoryCollection(String value) {
+    setJsonData("hcoll", value);
+  }
+
+  @UIField(order = 102)
+  @Min(1)
+  @Max(100000)
+  public int getHistoryBatchSize() {
+    return getJsonData("hbs", 1000);
+  }
+
+  public void setHistoryBatchSize(int value) {
+    setJsonData("hbs", value);
+  }
+
+  @UIField(order = 103)
+  @Min(100)
+  @Max(600000)
+  public int getHistoryFlushInterval() {
+    return getJsonData("hfi", 5000);
+  }
+
+  public void setHistoryFlushInterval(int value) {
+    setJsonData("hfi", value);
+  }
+
+  /**
+   * Seconds to keep history documents, 0 - forever. Applied only when collection is created
+   */
+  @UIField(order = 104)
+  @Min(0)
+  public int getHistoryExpireAfter() {
+    return getJsonData("hexp", 0);
+  }
+
+  public void setHistoryExpireAfter(int value) {
+    setJsonData("hexp", value);
+  }
+
+  @UIField(order = 110)
+  public boolean isQueryCache() {
+    return getJsonData("qc", false);
+  }
+
+  public void setQueryCache(boolean value) {
+    setJsonData("qc", value);
+  }
+
+  @UIField(order = 111)
+  @Min(1)
+  @Max(100000)
+  public int getQueryCacheSize() {
+    return getJsonData("qcs", 1000);
+  }
+
+  public void setQueryCacheSize(int value) {
+    setJsonData("qcs", value);
+  }
+
+  /**
+   * Upper bound of entry lifetime. Entries are also evicted on change of collection, which has to be watchable
+   */
+  @UIField(order = 112)
+  @Min(100)
+  public int getQueryCacheTtl() {
+    return getJsonData("qct", 60000);
+  }
+
+  public void setQueryCacheTtl(int value) {
+    setJsonData("qct", value);
+  }
+
+  @UIField(order = 113, hideInEdit = true, hideOnEmpty = true)
+  public String getQueryCacheStats() {
+    try {
+      MongoQueryCache cache = getService().getQueryCache();
+      if (cache == null) {
+        return null;
+      }
+      long hits = cache.getHits().get();
+      long total = hits + cache.getMisses().get();
+      return "%d hits / %d misses (%d%%)".formatted(hits, cache.getMisses().get(), total == 0 ? 0 : hits * 100 / total);
+    } catch (Exception ignore) {
+      return null;
+    }
+  }
+
+  /**
+   * Record query shapes of blocks and explain most frequent ones to find collection scans
+   */
+  @UIField(order = 120)
+  public boolean isIndexAdvisor() {
+    return getJsonData("ia", false);
+  }
+
+  public void setIndexAdvisor(boolean value) {
+    setJsonData("ia", value);
+  }
+
+  @UIField(order = 121)
+  @Min(10000)
+  public int getIndexAdvisorInterval() {
+    return getJsonData("iai", 300000);
+  }
+
+  public void setIndexAdvisorInterval(int value) {
+    setJsonData("iai", value);
+  }
+
+  /**
+   * Materialized countDoc keeps _id of every matching document in memory, larger results are counted on server
+   */
+  @UIField(order = 125)
+  @Min(1)
+  public int getMaterializedCountMaxDocuments() {
+    return getJsonData("mcmax", 100000);
+  }
+
+  public void setMaterializedCountMaxDocuments(int value) {
+    setJsonData("mcmax", value);
+  }
+
+  @UIField(order = 126)
+  @Min(10000)
+  public int getMaterializedCountReconcileInterval() {
+    return getJsonData("mcri", 600000);
+  }
+
+  public void setMaterializedCountReconcileInterval(int value) {
+    setJsonData("mcri", value);
+  }
+
+  /**
+   * Separated by new line or ';'. 'events ts 30d' removes documents of 'events' with 'ts' older than 30 days (s/m/h/d),
+   * 'logs 100000' keeps newest 100000 documents of 'logs'
+   */
+  @UIField(order = 130)
+  public String getRetentionPolicies() {
+    return getJsonData("ret", "");
+  }
+
+  public void setRetentionPolicies(String value) {
+    // reject typos on save instead of on connect
+    MongoRetentionEngine.parse(value);
+    setJsonData("ret", value);
+  }
+
+  @UIField(order = 131)
+  @Min(60000)
+  public int getRetentionInterval() {
+    return getJsonData("reti", 3600000);
+  }
+
+  public void setRetentionInterval(int value) {
+    setJsonData("reti", value);
+  }
+
+  @UIField(order = 132)
+  @Min(1)
+  @Max(100000)
+  public int getRetentionBatchSize() {
+    return getJsonData("retb", 1000);
+  }
+
+  public void setRetentionBatchSize(int value) {
+    setJsonData("retb", value);
+  }
+
+  /**
+   * Pause between delete batches, ms
+   */
+  @UIField(order = 133)
+  @Min(0)
+  public int getRetentionBatchPause() {
+    return getJsonData("retp", 200);
+  }
+
+  public void setRetentionBatchPause(int value) {
+    setJsonData("retp", value);
+  }
+
+  @UIField(order = 134)
+  public boolean isRetentionArchive() {
+    return getJsonData("reta", false);
+  }
+
+  public void setRetentionArchive(boolean value) {
+    setJsonData("reta", value);
+  }
+
+  @UIField(order = 135)
+  public String getRetentionArchiveDirectory() {
+    return getJsonData("retdir", "mongodb-archive");
+  }
+
+  public void setRetentionArchiveDirectory(String value) {
+    setJsonData("retdir", value);
+  }
+
+  @UIField(order = 140)
+  public String getExportDirectory() {
+    return getJsonData("expdir", "mongodb-export");
+  }
+
+  public void setExportDirectory(String value) {
+    setJsonData("expdir", value);
+  }
+
+  @UIField(order = 141)
+  public MongoCollectionTransfer.Format getExportFormat() {
+    return getJsonDataEnum("expf", MongoCollectionTransfer.Format.Bson);
+  }
+
+  public void setExportFormat(MongoCollectionTransfer.Format value) {
+    setJsonData("expf", value);
+  }
+
+  @UIField(order = 142)
+  public MongoCollectionTransfer.FileCompression getExportCompression() {
+    return getJsonDataEnum("expc", MongoCollectionTransfer.FileCompression.Zstd);
+  }
+
+  public void setExportCompression(MongoCollectionTransfer.FileCompression value) {
+    setJsonData("expc", value);
+  }
+
   @Override
   public String getDefaultName() {
     return "MongoDB";
@@ -101,7 +598,18 @@ public class MongoDBEntity extends StorageEntity implements
 
   @Override
   public long getEntityServiceHashCode() {
-    return getJsonDataHashCode("url", "user", "pwd", "db");
+    return getJsonDataHashCode("url", "user", "pwd", "db", "pmax", "pmin", "pwait", "pidle", "tconn", "tsock",
+      "tsel", "comp", "wb", "wbbs", "wbmd", "wbqs", "jsoid", "jsdate", "jsdec", "cpe", "cpi", "slowms",
+      "hsrc", "hcoll", "hbs", "hfi", "hexp", "qc", "qcs", "qct", "ia", "iai", "mcmax", "mcri", "ret", "reti", "conm");
+  }
+
+  /**
+   * Identity of MongoClient settings. Entities and loaders with same value share client and its command stats, so
+   * slow command threshold of stats is part of identity too
+   */
+  public long getConnectionHashCode() {
+    return getJsonDataHashCode("url", "user", "pwd", "db", "pmax", "pmin", "pwait", "pidle", "tconn", "tsock",
+      "tsel", "comp", "slowms");
   }
 
   @Override
@@ -116,10 +624,113 @@ public class MongoDBEntity extends StorageEntity implements
 
   @UIContextMenuAction("CHECK_DB_CONNECTION")
   public ActionResponseModel testConnection() {
-    getService().testServiceWithSetStatus();
+    MongoDBService service = getService();
+    try {
+      // explicit check connects OnFirstUse services
+      service.ensureConnected();
+    } catch (Exception ignore) {
+      // reported by status test
+    }
+    service.testServiceWithSetStatus();
     return ActionResponseModel.success();
   }
 
+  @UIContextMenuAction(value = "SHOW_INDEX_SUGGESTIONS", icon = "fas fa-magnifying-glass-chart")
+  public ActionResponseModel showIndexSuggestions() {
+    MongoQueryShapeRecorder recorder = getService().getShapeRecorder();
+    if (recorder == null) {
+      return ActionResponseModel.showError("Index advisor is disabled");
+    }
+    List<MongoQueryShapeRecorder.Suggestion> suggestions = recorder.getSuggestions();
+    if (suggestions.isEmpty()) {
+      return ActionResponseModel.showInfo("No collection scans detected");
+    }
+    StringBuilder message = new StringBuilder();
+    for (MongoQueryShapeRecorder.Suggestion suggestion : suggestions) {
+      message.append("%s %s: %d runs, %d docs examined (%s)\n".formatted(suggestion.collection(),
+        suggestion.keys().toJson(), suggestion.executions(), suggestion.docsExamined(), suggestion.shape()));
+    }
+    return ActionResponseModel.showInfo(message.toString());
+  }
+
+  @UIContextMenuAction(value = "APPLY_INDEX_SUGGESTIONS", icon = "fas fa-wand-magic-sparkles")
+  public ActionResponseModel applyIndexSuggestions(Context context) {
+    MongoQueryShapeRecorder recorder = getService().getShapeRecorder();
+    if (recorder == null || recorder.getSuggestions().isEmpty()) {
+      return ActionResponseModel.showError("No index suggestions");
+    }
+    context.bgp().runWithProgress("mongodb-apply-indexes").execute(progressBar -> recorder.applySuggestions());
+    return ActionResponseModel.showInfo("Creating indexes...");
+  }
+
+  @UIContextMenuAction(value = "RUN_RETENTION", icon = "fas fa-broom")
+  public ActionResponseModel runRetention() {
+    MongoRetentionEngine retentionEngine = getService().getRetentionEngine();
+    if (retentionEngine == null) {
+      return ActionResponseModel.showError("No retention policies");
+    }
+    if (!retentionEngine.run()) {
+      return ActionResponseModel.showError("Retention is already running");
+    }
+    return ActionResponseModel.showInfo("Applying retention...");
+  }
+
+  /**
+   * Export every collection of database into export directory
+   */
+  @UIContextMenuAction(value = "EXPORT_COLLECTIONS", icon = "fas fa-file-export")
+  public ActionResponseModel exportCollections(Context context) {
+    MongoDatabase database = getService().getMongoDatabase();
+    Path directory = Path.of(getExportDirectory()).toAbsolutePath();
+    MongoCollectionTransfer.Format format = getExportFormat();
+    MongoCollectionTransfer.FileCompression compression = getExportCompression();
+    MongoDBService service = getService();
+    context.bgp().runWithProgress("mongodb-export-" + getEntityID()).execute(progressBar -> {
+      List<String> collections = database.listCollectionNames().into(new ArrayList<>());
+      collections.removeIf(name -> name.startsWith("system."));
+      for (int i = 0; i < collections.size(); i++) {
+        String collection = collections.get(i);
+        double percent = i * 100D / collections.size();
+        try (MongoPartitionedScan<RawBsonDocument> scan = service.partitionedScan(
+          database.getCollection(collection, RawBsonDocument.class), new BsonDocument(), "_id", false)) {
+          MongoCollectionTransfer.export(scan,
+            directory.resolve(MongoCollectionTransfer.fileName(collection, format, compression)), format,
+            compression, count -> progressBar.progress(percent, "%s: %d exported".formatted(collection, count)));
+        }
+      }
+    });
+    return ActionResponseModel.showInfo("Exporting to " + directory);
+  }
+
+  /**
+   * Import every exported file of export directory into collection named after file
+   */
+  @UIContextMenuAction(value = "IMPORT_COLLECTIONS", icon = "fas fa-file-import")
+  public ActionResponseModel importCollections(Context context) throws IOException {
+    MongoDatabase database = getService().getMongoDatabase();
+    Path directory = Path.of(getExportDirectory()).toAbsolutePath();
+    if (!Files.isDirectory(directory)) {
+      return ActionResponseModel.showError("Directory " + directory + " not exists");
+    }
+    List<Path> files;
+    try (Stream<Path> stream = Files.list(directory)) {
+      files = stream.filter(file -> MongoCollectionTransfer.collectionName(file.getFileName().toString()) != null)
+        .sorted().toList();
+    }
+    if (files.isEmpty()) {
+      return ActionResponseModel.showError("No exported files in " + directory);
+    }
+    context.bgp().runWithProgress("mongodb-import-" + getEntityID()).execute(progressBar -> {
+      for (int i = 0; i < files.size(); i++) {
+        String collection = MongoCollectionTransfer.collectionName(files.get(i).getFileName().toString());
+        double percent = i * 100D / files.size();
+        MongoCollectionTransfer.importFile(database, collection, files.get(i),
+          count -> progressBar.progress(percent, "%s: %d imported".formatted(collection, count)));
+      }
+    });
+    return ActionResponseModel.showInfo("Importing " + files.size() + " files");
+  }
+
   @Override
   public void logBuilder(EntityLogBuilder entityLogBuilder) {
     entityLogBuilder.addTopic("org.homio.bundle.mongodb");
@@ -158,15 +769,26 @@ public class MongoDBEntity extends StorageEntity implements
     @Override
     public List<OptionModel> loadOptions(DynamicOptionLoaderParameters parameters) {
       List<OptionModel> list = new ArrayList<>();
-      try {
-        MongoClient mongoClient = MongoDBService.createMongoClient(((MongoDBEntity) parameters.getBaseEntity()));
-        for (String databaseName : mongoClient.listDatabaseNames()) {
+      MongoDBEntity entity = (MongoDBEntity) parameters.getBaseEntity();
+      try (MongoClientRegistry.Lease lease = MongoClientRegistry.acquire(entity)) {
+        for (String databaseName : lease.getClient().listDatabaseNames()) {
           list.add(OptionModel.key(databaseName));
         }
-        mongoClient.close();
       } catch (Exception ignore) {
       }
       return list;
     }
   }
+
+  public enum Compression {
+    None, Zstd, Snappy, Zlib
+  }
+
+  /**
+   * OnStart connects while service initializes, Background connects and loads collections in background after start,
+   * OnFirstUse connects when first block, loader or action needs database
+   */
+  public enum ConnectMode {
+    OnStart, Background, OnFirstUse
+  }
 }
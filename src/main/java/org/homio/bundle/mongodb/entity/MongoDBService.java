@@ -2,34 +2,130 @@ package org.homio.bundle.mongodb.entity;
 
 import com.mongodb.ConnectionString;
 import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoCompressor;
 import com.mongodb.MongoCredential;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.changestream.FullDocument;
 import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
 import org.bson.BsonDocument;
-import org.bson.BsonString;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.conversions.Bson;
 import org.homio.api.Context;
+import org.homio.api.ContextBGP.ThreadContext;
 import org.homio.api.model.Icon;
 import org.homio.api.service.EntityService;
 import org.homio.api.ui.UI;
+import org.homio.bundle.mongodb.codec.JsonNodeCodec;
 import org.jetbrains.annotations.Nullable;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
 import static org.apache.commons.lang3.StringUtils.defaultIfEmpty;
+import static org.homio.api.util.CommonUtils.getErrorMessage;
 
+@Log4j2
 public class MongoDBService extends EntityService.ServiceInstance<MongoDBEntity> {
 
-  @Getter
   private MongoDatabase mongoDatabase;
   private MongoClient mongoClient;
+  private MongoClientRegistry.Lease clientLease;
+  /**
+   * Changed on every initialize/destroy. Used to invalidate handles cached outside service
+   */
+  @Getter
+  private volatile long generation;
+  @Getter
+  private JsonNodeCodec jsonCodec = JsonNodeCodec.DEFAULT;
+  private ExecutorService executor;
+  /**
+   * Null until service is connected
+   */
+  @Getter
+  private @Nullable MongoCollectionCatalog collectionCatalog;
+  // guards connect/disconnect; client and everything that uses it is created on connect
+  private final Object connectLock = new Object();
+  private @Nullable CompletableFuture<Void> connecting;
+  private volatile boolean connected;
+  private volatile @Nullable String connectError;
+  private final Map<String, MongoWriteBuffer> writeBuffers = new ConcurrentHashMap<>();
+  private final Map<String, MongoChangeStreamDispatcher> dispatchers = new ConcurrentHashMap<>();
+  private MongoResumeTokenStore resumeTokenStore;
+  private @Nullable ThreadContext<Void> checkpointFlusher;
+  private @Nullable ThreadContext<Void> writeBehindFlusher;
+  private @Nullable ThreadContext<Void> healthProbe;
+  // refresh entity status on outage and recovery. Shared client may report after this service is destroyed
+  private final Consumer<MongoHealthMonitor.Status> healthListener = status -> {
+    ExecutorService current = executor;
+    if (!current.isShutdown()) {
+      try {
+        current.execute(this::testServiceWithSetStatus);
+      } catch (RejectedExecutionException ignore) {
+      }
+    }
+  };
+  private @Nullable MongoStateHistorySink historySink;
+  /**
+   * Null if query cache is disabled on entity
+   */
+  @Getter
+  private @Nullable MongoQueryCache queryCache;
+  private @Nullable MongoQueryShapeRecorder shapeRecorder;
+  private @Nullable ThreadContext<Void> shapeSampler;
+  @Getter
+  private MongoMaterializedCounts materializedCounts;
+  private @Nullable MongoRetentionEngine retentionEngine;
+  private ThreadContext<Void> countReconciler;
 
   public MongoDBService(MongoDBEntity entity, Context context) {
     super(context, entity, true, "MongoDB");
   }
 
-  public static MongoClient createMongoClient(MongoDBEntity entity) {
+  public static MongoClient createMongoClient(MongoDBEntity entity, MongoPoolStats poolStats,
+                                             MongoCommandStats commandStats, MongoHealthMonitor health) {
     MongoClientSettings.Builder builder = MongoClientSettings.builder()
-      .applyConnectionString(new ConnectionString(entity.getUrl()));
+      .applyConnectionString(new ConnectionString(entity.getUrl()))
+      .applyToConnectionPoolSettings(pool -> pool
+        .maxSize(entity.getMaxPoolSize())
+        .minSize(Math.min(entity.getMinPoolSize(), entity.getMaxPoolSize()))
+        .maxWaitTime(entity.getMaxWaitTime(), TimeUnit.MILLISECONDS)
+        .maxConnectionIdleTime(entity.getMaxConnectionIdleTime(), TimeUnit.MILLISECONDS)
+        .addConnectionPoolListener(poolStats))
+      .applyToSocketSettings(socket -> socket
+        .connectTimeout(entity.getConnectTimeout(), TimeUnit.MILLISECONDS)
+        .readTimeout(entity.getSocketTimeout(), TimeUnit.MILLISECONDS))
+      .applyToClusterSettings(cluster -> cluster
+        .serverSelectionTimeout(entity.getServerSelectionTimeout(), TimeUnit.MILLISECONDS))
+      .applyToServerSettings(server -> server.addServerMonitorListener(health))
+      .addCommandListener(commandStats);
+
+    switch (entity.getCompression()) {
+      case Zstd -> builder.compressorList(List.of(MongoCompressor.createZstdCompressor()));
+      case Snappy -> builder.compressorList(List.of(MongoCompressor.createSnappyCompressor()));
+      case Zlib -> builder.compressorList(List.of(MongoCompressor.createZlibCompressor()));
+      case None -> {
+      }
+    }
 
     if (!entity.getUser().isEmpty()) {
       builder.credential(
@@ -41,31 +137,443 @@ public class MongoDBService extends EntityService.ServiceInstance<MongoDBEntity>
 
   @Override
   protected void initialize() {
-    this.mongoClient = MongoDBService.createMongoClient(entity);
+    this.generation++;
+    this.jsonCodec = new JsonNodeCodec(entity.getJsonObjectIdMode(), entity.getJsonDateMode(),
+      entity.getJsonDecimalMode());
+    this.executor = Executors.newVirtualThreadPerTaskExecutor();
+    this.materializedCounts = new MongoMaterializedCounts(this, entity.getMaterializedCountMaxDocuments());
+    this.countReconciler = context.bgp().builder("mongodb-count-reconcile-" + entity.getEntityID())
+      .interval(Duration.ofMillis(entity.getMaterializedCountReconcileInterval()))
+      .execute(materializedCounts::reconcile);
+    switch (entity.getConnectMode()) {
+      case OnStart -> ensureConnected();
+      case Background -> warmUp().whenComplete((names, error) -> {
+        if (error != null) {
+          log.warn("Unable to warm up MongoDB '{}': {}", entity.getTitle(), getErrorMessage(error));
+        }
+      });
+      case OnFirstUse -> {
+      }
+    }
+  }
+
+  /**
+   * Start connecting on service thread if not connected yet. Concurrent callers share one attempt, failed attempt is
+   * repeated by next call
+   */
+  public CompletableFuture<Void> connectAsync() {
+    synchronized (connectLock) {
+      if (connecting == null) {
+        long expectedGeneration = generation;
+        // success is reported by health listener on first heartbeat
+        connecting = CompletableFuture.runAsync(() -> connect(expectedGeneration), executor)
+          .whenComplete((ignore, ex) -> {
+            if (ex != null) {
+              testServiceWithSetStatus();
+            }
+          });
+      }
+      return connecting;
+    }
+  }
+
+  /**
+   * Connect and load collection names in background
+   *
+   * @return future of loaded collection names
+   */
+  public CompletableFuture<List<String>> warmUp() {
+    return connectAsync().thenCompose(ignore -> collectionCatalog.getNames());
+  }
+
+  /**
+   * Wait until this service is connected. Other services don't affect caller
+   *
+   * @throws IllegalStateException if connection can't be created
+   */
+  public void ensureConnected() {
+    if (connected) {
+      return;
+    }
+    try {
+      connectAsync().join();
+    } catch (CompletionException ex) {
+      Throwable cause = ex.getCause() == null ? ex : ex.getCause();
+      throw new IllegalStateException("Unable to connect to MongoDB: " + getErrorMessage(cause), cause);
+    }
+  }
+
+  public MongoDatabase getMongoDatabase() {
+    ensureConnected();
+    return mongoDatabase;
+  }
+
+  /**
+   * @return query shape recorder or null if index advisor is disabled on entity
+   */
+  public @Nullable MongoQueryShapeRecorder getShapeRecorder() {
+    ensureConnected();
+    return shapeRecorder;
+  }
+
+  /**
+   * @return retention engine or null if entity has no retention policies
+   */
+  public @Nullable MongoRetentionEngine getRetentionEngine() {
+    ensureConnected();
+    return retentionEngine;
+  }
+
+  private void connect(long expectedGeneration) {
+    synchronized (connectLock) {
+      if (connected) {
+        return;
+      }
+      if (generation != expectedGeneration) {
+        throw new IllegalStateException("MongoDB service was restarted");
+      }
+      long started = System.currentTimeMillis();
+      try {
+        doConnect();
+        connected = true;
+        connectError = null;
+      } catch (RuntimeException ex) {
+        connecting = null;
+        connectError = getErrorMessage(ex);
+        disconnect();
+        throw ex;
+      }
+      log.info("MongoDB '{}' connected in {}ms", entity.getTitle(), System.currentTimeMillis() - started);
+    }
+  }
+
+  private void doConnect() {
+    this.clientLease = MongoClientRegistry.acquire(entity);
+    this.mongoClient = clientLease.getClient();
+    this.clientLease.getCommandStats().setSlowThresholdMillis(entity.getSlowCommandThreshold());
     this.mongoDatabase = mongoClient.getDatabase(entity.getDatabase());
+    MongoHealthMonitor health = clientLease.getHealth();
+    health.addListener(healthListener);
+    this.healthProbe = context.bgp().builder("mongodb-health-" + entity.getEntityID())
+      .interval(Duration.ofSeconds(1))
+      .execute(() -> health.probe(mongoClient));
+    this.collectionCatalog = new MongoCollectionCatalog(mongoDatabase, executor);
+    this.collectionCatalog.start();
+    this.resumeTokenStore = new MongoResumeTokenStore(mongoDatabase, executor, entity.getCheckpointEvents());
+    this.checkpointFlusher = context.bgp().builder("mongodb-checkpoint-" + entity.getEntityID())
+      .interval(Duration.ofMillis(entity.getCheckpointInterval()))
+      .execute(resumeTokenStore::flush);
+    if (entity.isWriteBehind()) {
+      this.writeBehindFlusher = context.bgp().builder("mongodb-write-behind-" + entity.getEntityID())
+        .interval(Duration.ofMillis(entity.getWriteBehindMaxDelay()))
+        .execute(this::flushWriteBuffers);
+    }
+    if (entity.isQueryCache()) {
+      this.queryCache = new MongoQueryCache(this, jsonCodec, entity.getQueryCacheSize(),
+        entity.getQueryCacheTtl());
+    }
+    if (entity.isIndexAdvisor()) {
+      MongoQueryShapeRecorder recorder = new MongoQueryShapeRecorder(mongoDatabase);
+      this.shapeRecorder = recorder;
+      this.shapeSampler = context.bgp().builder("mongodb-index-advisor-" + entity.getEntityID())
+        .interval(Duration.ofMillis(entity.getIndexAdvisorInterval()))
+        .execute(recorder::sample);
+    }
+    if (!entity.getRetentionPolicies().isBlank()) {
+      this.retentionEngine = new MongoRetentionEngine(context, entity, mongoDatabase);
+      this.retentionEngine.start();
+    }
+    if (!entity.getHistorySources().isBlank()) {
+      this.historySink = new MongoStateHistorySink(context, entity, mongoDatabase, executor);
+      this.historySink.start();
+    }
+  }
+
+  /**
+   * Scan collection with up to entity's scan parallelism concurrent range cursors. Caller must close returned scan
+   *
+   * @param field   single-valued, preferably indexed field to split collection by
+   * @param ordered return documents in ascending field order instead of arrival order
+   */
+  public <T> MongoPartitionedScan<T> partitionedScan(MongoCollection<T> collection, BsonDocument filter,
+                                                     String field, boolean ordered) {
+    return new MongoPartitionedScan<>(collection, filter, field, entity.getScanParallelism(), ordered, executor);
+  }
+
+  /**
+   * @return command latency stats of underlying client or null if service isn't initialized
+   */
+  public @Nullable MongoCommandStats getCommandStats() {
+    MongoClientRegistry.Lease lease = clientLease;
+    return lease == null ? null : lease.getCommandStats();
+  }
+
+  /**
+   * Run operation on virtual thread of this service. Origin of calling thread is propagated for command stats
+   */
+  public <T> Future<T> submit(Callable<T> task) {
+    String origin = MongoCommandStats.getOrigin();
+    return executor.submit(() -> {
+      MongoCommandStats.setOrigin(origin);
+      return task.call();
+    });
+  }
+
+  /**
+   * @return write-behind queue of collection or null if write-behind is disabled for entity
+   */
+  public @Nullable MongoWriteBuffer getWriteBuffer(String collection) {
+    if (!entity.isWriteBehind()) {
+      return null;
+    }
+    ensureConnected();
+    return writeBuffers.computeIfAbsent(collection, name ->
+      new MongoWriteBuffer(mongoDatabase.getCollection(name), entity.getWriteBehindBatchSize(),
+        entity.getWriteBehindQueueSize(), executor));
+  }
+
+  /**
+   * Subscribe to changes of collection. Subscribers of same collection share one change stream and filters are
+   * evaluated locally. Filters with operators not supported by {@link BsonFilterMatcher} get dedicated stream with
+   * server side $match, shared by subscribers with same filter. Subscribers with checkpointKey get own stream that
+   * starts after saved resume token, because every such subscriber has own position in the oplog
+   *
+   * @param operationTypes change stream operation types or null for any
+   * @param checkpointKey  key to persist resume token of handled events, or null to watch from now
+   */
+  public MongoChangeStreamDispatcher.Subscription watch(String collection, @Nullable Set<String> operationTypes,
+                                                        BsonDocument filter, FullDocument fullDocument,
+                                                        @Nullable String checkpointKey,
+                                                        Consumer<RawBsonDocument> handler,
+                                                        Consumer<Exception> errorHandler) {
+    return watch(collection, operationTypes, filter, fullDocument, checkpointKey, entity.getWatchQueueSize(),
+      entity.getWatchOverflowPolicy(), handler, errorHandler);
+  }
+
+  /**
+   * Same as {@link #watch(String, Set, BsonDocument, FullDocument, String, Consumer, Consumer)} with explicit
+   * subscriber queue settings instead of entity's ones
+   */
+  public MongoChangeStreamDispatcher.Subscription watch(String collection, @Nullable Set<String> operationTypes,
+                                                        BsonDocument filter, FullDocument fullDocument,
+                                                        @Nullable String checkpointKey, int queueSize,
+                                                        MongoChangeStreamDispatcher.OverflowPolicy overflowPolicy,
+                                                        Consumer<RawBsonDocument> handler,
+                                                        Consumer<Exception> errorHandler) {
+    ensureConnected();
+    BsonFilterMatcher matcher = BsonFilterMatcher.tryCompile(filter);
+    String key = collection + "|" + fullDocument.getValue();
+    List<Bson> pipeline = List.of();
+    if (matcher == null) {
+      List<Bson> conditions = new ArrayList<>();
+      conditions.add(filter);
+      if (operationTypes != null) {
+        conditions.add(Filters.in("operationType", operationTypes));
+      }
+      pipeline = List.of(Aggregates.match(Filters.and(conditions)));
+      key += "|" + filter.toJson() + "|" + operationTypes;
+      matcher = BsonFilterMatcher.ANY;
+    }
+    List<Bson> streamPipeline = pipeline;
+    MongoCollection<Document> mongoCollection = mongoDatabase.getCollection(collection);
+
+    MongoChangeStreamDispatcher dispatcher;
+    Consumer<BsonDocument> onHandled = null;
+    Consumer<Exception> onError = errorHandler;
+    if (checkpointKey == null) {
+      dispatcher = dispatchers.computeIfAbsent(key, k ->
+        new MongoChangeStreamDispatcher(mongoCollection, streamPipeline, fullDocument, null, executor));
+    } else {
+      BsonDocument token = resumeTokenStore.load(checkpointKey);
+      dispatcher = new MongoChangeStreamDispatcher(mongoCollection, streamPipeline, fullDocument, token, executor);
+      MongoChangeStreamDispatcher previous = dispatchers.put("checkpoint|" + checkpointKey, dispatcher);
+      if (previous != null) {
+        previous.close();
+      }
+      onHandled = resumeToken -> resumeTokenStore.update(checkpointKey, resumeToken);
+      onError = ex -> {
+        if (ex instanceof MongoChangeStreamDispatcher.HistoryLostException) {
+          resumeTokenStore.delete(checkpointKey);
+        }
+        errorHandler.accept(ex);
+      };
+    }
+    return dispatcher.subscribe(new MongoChangeStreamDispatcher.SubscriptionRequest(operationTypes, matcher,
+      queueSize, overflowPolicy, handler, onError, onHandled));
+  }
+
+  private void flushWriteBuffers() {
+    for (MongoWriteBuffer buffer : writeBuffers.values()) {
+      if (buffer.getQueueDepth() > 0) {
+        buffer.flush();
+      }
+    }
   }
 
   @Override
   public void testService() {
+    if (!connected) {
+      // status test must not connect, OnFirstUse services stay idle until used
+      String error = connectError;
+      if (error != null) {
+        throw new IllegalStateException("Unable to connect to MongoDB: " + error);
+      }
+      return;
+    }
+    checkAvailable();
     mongoDatabase.listCollectionNames().first();
   }
 
+  /**
+   * Circuit breaker for block operations
+   *
+   * @throws IllegalStateException immediately while server is known to be down
+   */
+  public void checkAvailable() {
+    MongoClientRegistry.Lease lease = clientLease;
+    if (lease != null) {
+      lease.getHealth().checkAvailable();
+    }
+  }
+
   public void updateNotificationBlock() {
     context.ui().notification().addBlock("mongo", "mongo", new Icon("fas fa-mountain", "#32A318"), builder -> {
       builder.setStatus(getEntity().getStatus());
       if (!getEntity().getStatus().isOnline()) {
         var err = defaultIfEmpty(getEntity().getStatusMessage(), "Unknown error");
         builder.addInfo(String.valueOf(err.hashCode()), new Icon("fas fa-exclamation", UI.Color.RED), err);
+      } else if (!connected) {
+        builder.addInfo("connect", new Icon("fas fa-plug", "#32A318"), "Not connected yet");
       } else {
-        String version = mongoDatabase.runCommand(new BsonDocument("buildinfo", new BsonString("")))
-          .get("version").toString();
-        builder.setVersion(version);
+        String version = clientLease.getHealth().getVersion();
+        if (version != null) {
+          builder.setVersion(version);
+        }
+        MongoPoolStats pool = clientLease.getPoolStats();
+        builder.addInfo("pool", new Icon("fas fa-network-wired", "#32A318"),
+          "Pool: %d in use, %d idle, %d waiting, wait avg %.1fms / max %.1fms".formatted(pool.getCheckedOut(),
+            pool.getAvailable(), pool.getWaiting(), pool.getAvgWaitMillis(), pool.getMaxWaitMillis()));
+        MongoCommandStats commandStats = clientLease.getCommandStats();
+        LatencyHistogram.Snapshot total = commandStats.getTotal();
+        builder.addInfo("commands", new Icon("fas fa-stopwatch", "#32A318"),
+          "Commands: %d, errors %d, slow %d, p95 %.1fms / max %.1fms".formatted(total.count(), total.errors(),
+            commandStats.getSlowCount().get(), total.p95Millis(), total.maxMillis()));
+        Map.Entry<String, LatencyHistogram> busiest = commandStats.getBusiestOrigin();
+        if (busiest != null) {
+          builder.addInfo("commands-busiest", new Icon("fas fa-fire", "#32A318"),
+            "Busiest: %s, %d commands, %.0fms total".formatted(busiest.getKey(), busiest.getValue().getCount(),
+              busiest.getValue().getTotalNanos() / 1_000_000D));
+        }
+        dispatchers.forEach((key, dispatcher) -> {
+          int subscribers = dispatcher.getSubscriptions().size();
+          if (subscribers > 0) {
+            long dropped = dispatcher.getSubscriptions().stream().mapToLong(s -> s.getDropped().get()).sum();
+            builder.addInfo("watch-" + key.hashCode(), new Icon("fas fa-eye", "#32A318"),
+              "%s: %d watchers, %d dropped".formatted(dispatcher.getCollectionName(), subscribers, dropped));
+          }
+        });
+        if (queryCache != null) {
+          builder.addInfo("query-cache", new Icon("fas fa-bolt", "#32A318"),
+            "Query cache: %d entries, %d hits, %d misses, %d invalidated".formatted(queryCache.size(),
+              queryCache.getHits().get(), queryCache.getMisses().get(), queryCache.getInvalidations().get()));
+        }
+        if (shapeRecorder != null && shapeRecorder.getCollScanCount() > 0) {
+          builder.addInfo("collscan", new Icon("fas fa-triangle-exclamation", "#DB9D24"),
+            "%d query shapes run collection scans".formatted(shapeRecorder.getCollScanCount()));
+        }
+        if (materializedCounts != null && materializedCounts.size() > 0) {
+          builder.addInfo("mcount", new Icon("fas fa-calculator", "#32A318"),
+            "Materialized counts: %d, %d corrected by reconcile".formatted(materializedCounts.size(),
+              materializedCounts.getCorrections().get()));
+        }
+        if (retentionEngine != null) {
+          builder.addInfo("retention", new Icon("fas fa-broom", "#32A318"),
+            "Retention: %d removed, %d archived".formatted(retentionEngine.getDeleted().get(),
+              retentionEngine.getArchived().get()));
+        }
+        if (historySink != null) {
+          MongoWriteBuffer buffer = historySink.getBuffer();
+          builder.addInfo("history", new Icon("fas fa-chart-line", "#32A318"),
+            "History: queue %d, written %d, failed %d, dropped %d".formatted(buffer.getQueueDepth(),
+              buffer.getWrittenCount().get(), buffer.getFailedCount().get(), buffer.getDroppedCount().get()));
+        }
+        for (MongoWriteBuffer buffer : writeBuffers.values()) {
+          builder.addInfo("wb-" + buffer.getName(), new Icon("fas fa-layer-group", "#32A318"),
+            "%s: queue %d, flush avg %.1fms / max %.1fms, failed %d".formatted(buffer.getName(),
+              buffer.getQueueDepth(), buffer.getAvgFlushMillis(), buffer.getMaxFlushMillis(),
+              buffer.getFailedCount().get()));
+        }
       }
     });
   }
 
   @Override
   public void destroy(boolean forRestart, @Nullable Exception ex) {
-    mongoClient.close();
+    generation++;
+    if (countReconciler != null) {
+      countReconciler.cancel();
+      countReconciler = null;
+    }
+    if (materializedCounts != null) {
+      materializedCounts.close();
+    }
+    synchronized (connectLock) {
+      connected = false;
+      connecting = null;
+      disconnect();
+    }
+    executor.shutdown();
+  }
+
+  /**
+   * Release client and everything created by connect. Safe to call after partially failed connect
+   */
+  private void disconnect() {
+    if (healthProbe != null) {
+      healthProbe.cancel();
+      healthProbe = null;
+    }
+    if (writeBehindFlusher != null) {
+      writeBehindFlusher.cancel();
+      writeBehindFlusher = null;
+    }
+    flushWriteBuffers();
+    writeBuffers.clear();
+    if (historySink != null) {
+      historySink.stop();
+      historySink = null;
+    }
+    if (collectionCatalog != null) {
+      collectionCatalog.close();
+      collectionCatalog = null;
+    }
+    if (queryCache != null) {
+      queryCache.close();
+      queryCache = null;
+    }
+    if (shapeSampler != null) {
+      shapeSampler.cancel();
+      shapeSampler = null;
+    }
+    shapeRecorder = null;
+    if (retentionEngine != null) {
+      retentionEngine.stop();
+      retentionEngine = null;
+    }
+    dispatchers.values().forEach(MongoChangeStreamDispatcher::close);
+    dispatchers.clear();
+    if (checkpointFlusher != null) {
+      checkpointFlusher.cancel();
+      checkpointFlusher = null;
+    }
+    if (resumeTokenStore != null) {
+      resumeTokenStore.flush();
+      resumeTokenStore = null;
+    }
+    if (clientLease != null) {
+      clientLease.getHealth().removeListener(healthListener);
+      clientLease.close();
+      clientLease = null;
+    }
   }
 }
@@ -0,0 +1,181 @@
+package org.homio.bundle.mongodb.entity;
+
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.event.ServerHeartbeatFailedEvent;
+import com.mongodb.event.ServerHeartbeatSucceededEvent;
+import com.mongodb.event.ServerMonitorListener;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import static org.homio.api.util.CommonUtils.getErrorMessage;
+
+/**
+ * Availability of one client's deployment. Driver heartbeats of every server and own {@link #probe} pings update
+ * status; pings run every {@link #UP_PING_INTERVAL} while server is up and with exponential backoff while it's down.
+ * Failed ping marks deployment down only when no server has successful heartbeat.
+ * {@link #checkAvailable()} is circuit breaker for block operations: while no server answers they fail immediately
+ * instead of waiting out server selection timeout, and pass again after first successful heartbeat or ping.
+ */
+@Log4j2
+public class MongoHealthMonitor implements ServerMonitorListener {
+
+  private static final long MIN_BACKOFF = 1000;
+  private static final long MAX_BACKOFF = 60000;
+  private static final long UP_PING_INTERVAL = 30000;
+  private static final BsonDocument PING = new BsonDocument("ping", new BsonInt32(1));
+  private static final BsonDocument BUILD_INFO = new BsonDocument("buildInfo", new BsonInt32(1));
+
+  private final Map<ServerAddress, Boolean> servers = new ConcurrentHashMap<>();
+  private final List<Consumer<Status>> listeners = new CopyOnWriteArrayList<>();
+  private final AtomicBoolean probing = new AtomicBoolean();
+  @Getter
+  private volatile Status status = Status.Unknown;
+  @Getter
+  private volatile @Nullable String lastError;
+  /**
+   * Cached server version, refreshed after every outage
+   */
+  @Getter
+  private volatile @Nullable String version;
+  private volatile long downSince;
+  private volatile long backoff = MIN_BACKOFF;
+  private volatile long nextProbeAt;
+
+  @Override
+  public void serverHeartbeatSucceeded(ServerHeartbeatSucceededEvent event) {
+    servers.put(event.getConnectionId().getServerId().getAddress(), true);
+    markUp();
+  }
+
+  @Override
+  public void serverHeartbeatFailed(ServerHeartbeatFailedEvent event) {
+    servers.put(event.getConnectionId().getServerId().getAddress(), false);
+    if (!servers.containsValue(true)) {
+      markDown(event.getThrowable());
+    }
+  }
+
+  /**
+   * Ping server if it's time to. Called periodically by every service that shares client
+   */
+  public void probe(MongoClient client) {
+    if (System.currentTimeMillis() < nextProbeAt || !probing.compareAndSet(false, true)) {
+      return;
+    }
+    String origin = MongoCommandStats.getOrigin();
+    MongoCommandStats.setOrigin("health");
+    try {
+      MongoDatabase admin = client.getDatabase("admin");
+      try {
+        admin.runCommand(PING);
+      } catch (Exception ex) {
+        if (servers.containsValue(true)) {
+          // e.g. ping of primary times out during election while secondaries still answer heartbeats
+          log.debug("MongoDB ping failed while heartbeats succeed: {}", getErrorMessage(ex));
+          probeLater();
+        } else {
+          markDown(ex);
+        }
+        return;
+      }
+      markUp();
+      if (version == null) {
+        try {
+          version = admin.runCommand(BUILD_INFO).getString("version");
+        } catch (Exception ex) {
+          // version is informational only and never changes status
+          log.debug("Unable to read MongoDB version: {}", getErrorMessage(ex));
+        }
+      }
+    } finally {
+      MongoCommandStats.setOrigin(origin);
+      probing.set(false);
+    }
+  }
+
+  /**
+   * @throws IllegalStateException while server is down
+   */
+  public void checkAvailable() {
+    if (status == Status.Down) {
+      throw new IllegalStateException("MongoDB is unavailable for %ds: %s".formatted(
+        (System.currentTimeMillis() - downSince) / 1000, lastError));
+    }
+  }
+
+  public void addListener(Consumer<Status> listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(Consumer<Status> listener) {
+    listeners.remove(listener);
+  }
+
+  private void markUp() {
+    Status previous;
+    synchronized (this) {
+      previous = status;
+      status = Status.Up;
+      lastError = null;
+      backoff = MIN_BACKOFF;
+      nextProbeAt = System.currentTimeMillis() + UP_PING_INTERVAL;
+    }
+    if (previous != Status.Up) {
+      if (previous == Status.Down) {
+        log.info("MongoDB is available again after {}s", (System.currentTimeMillis() - downSince) / 1000);
+      }
+      fire(Status.Up);
+    }
+  }
+
+  private synchronized void probeLater() {
+    nextProbeAt = System.currentTimeMillis() + backoff;
+    backoff = Math.min(backoff * 2, MAX_BACKOFF);
+  }
+
+  private void markDown(Throwable error) {
+    Status previous;
+    long now = System.currentTimeMillis();
+    synchronized (this) {
+      previous = status;
+      if (previous != Status.Down) {
+        downSince = now;
+        version = null;
+      }
+      status = Status.Down;
+      lastError = getErrorMessage(error);
+      nextProbeAt = now + backoff;
+      backoff = Math.min(backoff * 2, MAX_BACKOFF);
+    }
+    if (previous != Status.Down) {
+      log.warn("MongoDB is unavailable: {}", lastError);
+      fire(Status.Down);
+    }
+  }
+
+  private void fire(Status value) {
+    for (Consumer<Status> listener : listeners) {
+      try {
+        listener.accept(value);
+      } catch (Exception ex) {
+        log.warn("Error in MongoDB health listener: {}", getErrorMessage(ex));
+      }
+    }
+  }
+
+  public enum Status {
+    Unknown, Up, Down
+  }
+}
@@ -0,0 +1,295 @@
+package org.homio.bundle.mongodb.entity;
+
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.changestream.FullDocument;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static org.homio.api.util.CommonUtils.getErrorMessage;
+
+/**
+ * Counts of registered filters kept in memory. Counter loads _id of matching documents once and then follows shared
+ * change stream with updateLookup: insert/update/replace adds or removes _id depending on whether new document matches
+ * filter, delete removes _id. Ids are loaded only after stream cursor is open, events that arrive while ids are
+ * loading are replayed after load. Counters are reloaded on missed events and periodically by {@link #reconcile()}.
+ */
+@Log4j2
+public class MongoMaterializedCounts {
+
+  private static final int QUEUE_SIZE = 10_000;
+  private static final long STREAM_START_TIMEOUT_MS = 30_000;
+  private static final BsonDocument ID_PROJECTION = new BsonDocument("_id", new BsonInt32(1));
+
+  private final MongoDBService service;
+  private final int maxDocuments;
+  private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+
+  /**
+   * Count differences found by reconcile
+   */
+  @Getter
+  private final AtomicLong corrections = new AtomicLong();
+
+  public MongoMaterializedCounts(MongoDBService service, int maxDocuments) {
+    this.service = service;
+    this.maxDocuments = maxDocuments;
+  }
+
+  /**
+   * Register owner as user of counter, creating and loading counter on first use
+   *
+   * @param onRelease receives release callback once per owner
+   * @return null if filter can't be evaluated locally, matches more than max documents or collection can't be watched.
+   * Caller should count documents on server instead
+   */
+  public @Nullable Counter acquire(String collection, BsonDocument filter, String owner,
+                                   Consumer<Runnable> onRelease) {
+    BsonFilterMatcher matcher = BsonFilterMatcher.tryCompile(filter);
+    if (matcher == null) {
+      return null;
+    }
+    String key = collection + "|" + filter.toJson();
+    Counter counter;
+    synchronized (this) {
+      counter = counters.computeIfAbsent(key, k -> new Counter(collection, filter, matcher));
+      if (counter.owners.add(owner)) {
+        onRelease.accept(() -> release(key, owner));
+      }
+    }
+    return counter.ensureLoaded() ? counter : null;
+  }
+
+  public int size() {
+    return counters.size();
+  }
+
+  /**
+   * Reload every counter from server. Counters failed by error get another chance to subscribe on next acquire,
+   * counters over max documents are not rescanned
+   */
+  public void reconcile() {
+    for (Counter counter : counters.values()) {
+      try {
+        counter.reconcile();
+      } catch (Exception ex) {
+        log.warn("Unable to reconcile count of '{}' {}: {}", counter.collection, counter.filter.toJson(),
+          getErrorMessage(ex));
+      }
+    }
+  }
+
+  public synchronized void close() {
+    counters.values().forEach(Counter::close);
+    counters.clear();
+  }
+
+  private synchronized void release(String key, String owner) {
+    Counter counter = counters.get(key);
+    if (counter != null && counter.owners.remove(owner) && counter.owners.isEmpty()) {
+      counters.remove(key);
+      counter.close();
+    }
+  }
+
+  public class Counter {
+
+    private final String collection;
+    private final BsonDocument filter;
+    private final BsonFilterMatcher matcher;
+    private final Set<String> owners = ConcurrentHashMap.newKeySet();
+    // held while ids are scanned, so change events keep flowing into pending list
+    private final Object loadLock = new Object();
+    private Set<BsonValue> ids = new HashSet<>();
+    private @Nullable List<RawBsonDocument> pending;
+    private @Nullable MongoChangeStreamDispatcher.Subscription subscription;
+    private long dropped;
+    private volatile int count;
+    private volatile boolean live;
+    private volatile boolean failed;
+    // filter matched more than max documents, stays failed until counter is released
+    private volatile boolean overCap;
+
+    private Counter(String collection, BsonDocument filter, BsonFilterMatcher matcher) {
+      this.collection = collection;
+      this.filter = filter;
+      this.matcher = matcher;
+    }
+
+    public int get() {
+      return count;
+    }
+
+    private boolean ensureLoaded() {
+      synchronized (loadLock) {
+        if (live || failed) {
+          return live;
+        }
+        try {
+          MongoChangeStreamDispatcher.Subscription created = service.watch(collection, null, new BsonDocument(),
+            FullDocument.UPDATE_LOOKUP, null, QUEUE_SIZE, MongoChangeStreamDispatcher.OverflowPolicy.DropNewest,
+            this::onChange, this::onError);
+          synchronized (this) {
+            subscription = created;
+          }
+          // watch returns before cursor is open, changes made between scan and cursor open would be missed
+          created.getStarted().get(STREAM_START_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+          live = load();
+        } catch (Exception ex) {
+          if (ex instanceof InterruptedException) {
+            Thread.currentThread().interrupt();
+          }
+          if (!failed) {
+            onError(ex);
+          }
+        }
+        return live;
+      }
+    }
+
+    private void reconcile() {
+      synchronized (loadLock) {
+        if (failed) {
+          failed = overCap;
+          return;
+        }
+        if (live) {
+          int before = count;
+          load();
+          if (count != before) {
+            corrections.addAndGet(Math.abs(count - before));
+            log.debug("Materialized count of '{}' {} corrected {} -> {}", collection, filter.toJson(), before,
+              count);
+          }
+        }
+      }
+    }
+
+    /**
+     * @return false if filter matches too many documents
+     */
+    private boolean load() {
+      synchronized (this) {
+        if (pending == null) {
+          pending = new ArrayList<>();
+        }
+      }
+      Set<BsonValue> loaded = new HashSet<>();
+      try (MongoCursor<BsonDocument> cursor = service.getMongoDatabase().getCollection(collection)
+        .find(filter, BsonDocument.class).projection(ID_PROJECTION).iterator()) {
+        while (cursor.hasNext()) {
+          loaded.add(cursor.next().get("_id"));
+          if (loaded.size() > maxDocuments) {
+            log.info("Count of '{}' {} exceeds {} documents and isn't materialized", collection,
+              filter.toJson(), maxDocuments);
+            overCap = true;
+            fail();
+            return false;
+          }
+        }
+      } catch (RuntimeException ex) {
+        synchronized (this) {
+          pending = null;
+        }
+        throw ex;
+      }
+      synchronized (this) {
+        ids = loaded;
+        List<RawBsonDocument> events = pending;
+        pending = null;
+        if (events != null) {
+          events.forEach(this::apply);
+        }
+        count = ids.size();
+      }
+      return true;
+    }
+
+    private void onChange(RawBsonDocument event) {
+      long droppedNow = subscription == null ? 0 : subscription.getDropped().get();
+      if (droppedNow != dropped) {
+        // missed events, count can't be trusted until reload
+        dropped = droppedNow;
+        reload();
+        return;
+      }
+      String operationType = event.getString("operationType").getValue();
+      if (!operationType.equals("insert") && !operationType.equals("update") && !operationType.equals("replace")
+        && !operationType.equals("delete")) {
+        reload();
+        return;
+      }
+      synchronized (this) {
+        if (pending != null) {
+          pending.add(event);
+        } else {
+          apply(event);
+          count = ids.size();
+        }
+      }
+    }
+
+    private void reload() {
+      synchronized (loadLock) {
+        if (live) {
+          load();
+        }
+      }
+    }
+
+    private void apply(RawBsonDocument event) {
+      BsonDocument documentKey = event.getDocument("documentKey", null);
+      BsonValue id = documentKey == null ? null : documentKey.get("_id");
+      if (id == null) {
+        return;
+      }
+      BsonValue fullDocument = event.get("fullDocument");
+      if (fullDocument != null && fullDocument.isDocument() && matcher.matches(fullDocument.asDocument())) {
+        ids.add(id);
+      } else {
+        // deleted, updated out of filter or removed before lookup
+        ids.remove(id);
+      }
+    }
+
+    private void onError(Exception ex) {
+      log.info("Count of '{}' {} isn't materialized: {}", collection, filter.toJson(), getErrorMessage(ex));
+      fail();
+    }
+
+    private synchronized void fail() {
+      live = false;
+      count = 0;
+      failed = true;
+      ids = new HashSet<>();
+      pending = null;
+      closeSubscription();
+    }
+
+    private synchronized void close() {
+      live = false;
+      closeSubscription();
+    }
+
+    private void closeSubscription() {
+      if (subscription != null) {
+        subscription.close();
+        subscription = null;
+      }
+    }
+  }
+}
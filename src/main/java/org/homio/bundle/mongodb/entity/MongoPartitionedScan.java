@@ -0,0 +1,189 @@
+package org.homio.bundle.mongodb.entity;
+
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Reads collection through several concurrent cursors over disjoint ranges of single-valued field (indexed, _id by
+ * default). Boundaries are taken from sorted {@code $sample} of field values. First range also takes documents where
+ * field is missing, null or has other BSON type than boundaries, so ranges always cover whole filter.
+ * <p>
+ * Unordered merge returns documents as any cursor delivers them. Ordered merge sorts every range by field and drains
+ * ranges one after another while next ones keep prefetching into own bounded queue.
+ */
+public class MongoPartitionedScan<T> implements Iterator<T>, AutoCloseable {
+
+  private static final int QUEUE_SIZE = 1024;
+  private static final int SAMPLES_PER_PARTITION = 20;
+  private static final int MIN_DOCUMENTS_PER_PARTITION = 10_000;
+  private static final Object END = new Object();
+
+  private final List<BlockingQueue<Object>> queues = new ArrayList<>();
+  private final List<Future<?>> producers = new ArrayList<>();
+  private final int endsPerQueue;
+  private int current;
+  private int ends;
+  private @Nullable T next;
+  private volatile boolean closed;
+
+  /**
+   * @param partitions max number of concurrent cursors, less are used for small collections
+   */
+  public MongoPartitionedScan(MongoCollection<T> collection, BsonDocument filter, String field, int partitions,
+                              boolean ordered, ExecutorService executor) {
+    List<BsonDocument> ranges = ranges(filter, field, boundaries(collection, field, partitions));
+    this.endsPerQueue = ordered ? 1 : ranges.size();
+    for (int i = 0; i < (ordered ? ranges.size() : 1); i++) {
+      queues.add(new ArrayBlockingQueue<>(ordered ? QUEUE_SIZE : QUEUE_SIZE * ranges.size()));
+    }
+    String origin = MongoCommandStats.getOrigin();
+    for (int i = 0; i < ranges.size(); i++) {
+      FindIterable<T> find = collection.find(ranges.get(i));
+      if (ordered) {
+        find.sort(new BsonDocument(field, new BsonInt32(1)));
+      }
+      BlockingQueue<Object> queue = queues.get(ordered ? i : 0);
+      producers.add(executor.submit(() -> produce(find, queue, origin)));
+    }
+  }
+
+  /**
+   * @return ascending distinct split points, empty if collection is too small to split
+   */
+  public static List<BsonValue> boundaries(MongoCollection<?> collection, String field, int partitions) {
+    List<BsonValue> boundaries = new ArrayList<>();
+    if (partitions < 2 || collection.estimatedDocumentCount() < (long) partitions * MIN_DOCUMENTS_PER_PARTITION) {
+      return boundaries;
+    }
+    List<BsonDocument> pipeline = List.of(
+      new BsonDocument("$sample", new BsonDocument("size", new BsonInt32(partitions * SAMPLES_PER_PARTITION))),
+      new BsonDocument("$project", new BsonDocument("_id", new BsonInt32(0))
+        .append("v", new BsonString("$" + field))),
+      new BsonDocument("$sort", new BsonDocument("v", new BsonInt32(1))));
+    List<BsonValue> samples = new ArrayList<>();
+    for (BsonDocument sample : collection.aggregate(pipeline, BsonDocument.class)) {
+      BsonValue value = sample.get("v");
+      if (value != null && !value.isNull() && !value.isArray()) {
+        samples.add(value);
+      }
+    }
+    for (int i = 1; i < partitions && !samples.isEmpty(); i++) {
+      BsonValue value = samples.get(i * samples.size() / partitions);
+      // ranges are compared inside one type bracket
+      if (!boundaries.isEmpty() && (value.getBsonType() != boundaries.get(0).getBsonType()
+        || value.equals(boundaries.get(boundaries.size() - 1)))) {
+        continue;
+      }
+      boundaries.add(value);
+    }
+    return boundaries;
+  }
+
+  @Override
+  public boolean hasNext() {
+    while (next == null) {
+      if (current >= queues.size()) {
+        return false;
+      }
+      Object item;
+      try {
+        item = queues.get(current).take();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        close();
+        throw new IllegalStateException("Interrupted while waiting for partitioned scan");
+      }
+      if (item == END) {
+        if (++ends == endsPerQueue) {
+          ends = 0;
+          current++;
+        }
+      } else if (item instanceof Failure failure) {
+        close();
+        throw new IllegalStateException("Partitioned scan failed: " + failure.error().getMessage(), failure.error());
+      } else {
+        //noinspection unchecked
+        next = (T) item;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public T next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    T value = next;
+    next = null;
+    return value;
+  }
+
+  @Override
+  public void close() {
+    if (!closed) {
+      closed = true;
+      producers.forEach(producer -> producer.cancel(true));
+      current = queues.size();
+    }
+  }
+
+  private static List<BsonDocument> ranges(BsonDocument filter, String field, List<BsonValue> boundaries) {
+    List<BsonDocument> ranges = new ArrayList<>();
+    if (boundaries.isEmpty()) {
+      ranges.add(filter);
+      return ranges;
+    }
+    ranges.add(and(filter, new BsonDocument(field, new BsonDocument("$not",
+      new BsonDocument("$gte", boundaries.get(0))))));
+    for (int i = 1; i < boundaries.size(); i++) {
+      ranges.add(and(filter, new BsonDocument(field, new BsonDocument("$gte", boundaries.get(i - 1))
+        .append("$lt", boundaries.get(i)))));
+    }
+    ranges.add(and(filter, new BsonDocument(field, new BsonDocument("$gte",
+      boundaries.get(boundaries.size() - 1)))));
+    return ranges;
+  }
+
+  private static BsonDocument and(BsonDocument filter, BsonDocument range) {
+    return filter.isEmpty() ? range : new BsonDocument("$and", new BsonArray(List.of(filter, range)));
+  }
+
+  private void produce(FindIterable<T> find, BlockingQueue<Object> queue, @Nullable String origin) {
+    MongoCommandStats.setOrigin(origin);
+    try (MongoCursor<T> cursor = find.iterator()) {
+      while (!closed && cursor.hasNext()) {
+        queue.put(cursor.next());
+      }
+      queue.put(END);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    } catch (Exception ex) {
+      try {
+        queue.put(new Failure(ex));
+      } catch (InterruptedException ignore) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private record Failure(Exception error) {
+
+  }
+}
@@ -0,0 +1,99 @@
+package org.homio.bundle.mongodb.entity;
+
+import com.mongodb.event.ConnectionCheckOutFailedEvent;
+import com.mongodb.event.ConnectionCheckOutStartedEvent;
+import com.mongodb.event.ConnectionCheckedInEvent;
+import com.mongodb.event.ConnectionCheckedOutEvent;
+import com.mongodb.event.ConnectionClosedEvent;
+import com.mongodb.event.ConnectionCreatedEvent;
+import com.mongodb.event.ConnectionPoolListener;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live connection pool counters of one MongoClient. Check out wait time is measured per thread, which matches
+ * synchronous driver where check out happens on caller thread.
+ */
+public class MongoPoolStats implements ConnectionPoolListener {
+
+  private final AtomicInteger total = new AtomicInteger();
+  private final AtomicInteger checkedOut = new AtomicInteger();
+  private final AtomicInteger waiting = new AtomicInteger();
+  private final AtomicLong checkOutCount = new AtomicLong();
+  private final AtomicLong checkOutFailed = new AtomicLong();
+  private final AtomicLong totalWaitNanos = new AtomicLong();
+  private final AtomicLong maxWaitNanos = new AtomicLong();
+  private final ThreadLocal<Long> checkOutStarted = new ThreadLocal<>();
+
+  @Override
+  public void connectionCreated(ConnectionCreatedEvent event) {
+    total.incrementAndGet();
+  }
+
+  @Override
+  public void connectionClosed(ConnectionClosedEvent event) {
+    total.decrementAndGet();
+  }
+
+  @Override
+  public void connectionCheckOutStarted(ConnectionCheckOutStartedEvent event) {
+    waiting.incrementAndGet();
+    checkOutStarted.set(System.nanoTime());
+  }
+
+  @Override
+  public void connectionCheckedOut(ConnectionCheckedOutEvent event) {
+    checkedOut.incrementAndGet();
+    checkOutCount.incrementAndGet();
+    finishWait();
+  }
+
+  @Override
+  public void connectionCheckOutFailed(ConnectionCheckOutFailedEvent event) {
+    checkOutFailed.incrementAndGet();
+    finishWait();
+  }
+
+  @Override
+  public void connectionCheckedIn(ConnectionCheckedInEvent event) {
+    checkedOut.decrementAndGet();
+  }
+
+  public int getCheckedOut() {
+    return checkedOut.get();
+  }
+
+  public int getAvailable() {
+    return Math.max(0, total.get() - checkedOut.get());
+  }
+
+  public int getWaiting() {
+    return waiting.get();
+  }
+
+  public long getCheckOutFailed() {
+    return checkOutFailed.get();
+  }
+
+  public double getAvgWaitMillis() {
+    long count = checkOutCount.get();
+    return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalWaitNanos.get()) / 1000D / count;
+  }
+
+  public double getMaxWaitMillis() {
+    return TimeUnit.NANOSECONDS.toMicros(maxWaitNanos.get()) / 1000D;
+  }
+
+  private void finishWait() {
+    waiting.decrementAndGet();
+    Long started = checkOutStarted.get();
+    if (started != null) {
+      checkOutStarted.remove();
+      long elapsed = System.nanoTime() - started;
+      totalWaitNanos.addAndGet(elapsed);
+      maxWaitNanos.accumulateAndGet(elapsed, Math::max);
+    }
+  }
+}
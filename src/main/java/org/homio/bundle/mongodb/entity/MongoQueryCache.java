@@ -0,0 +1,259 @@
+package org.homio.bundle.mongodb.entity;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.mongodb.client.model.changestream.FullDocument;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+import org.homio.api.state.JsonType;
+import org.homio.api.state.State;
+import org.homio.bundle.mongodb.codec.JsonNodeCodec;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static org.homio.api.util.CommonUtils.getErrorMessage;
+
+/**
+ * Read-through cache of block query results. Each cached collection is watched through shared change stream with
+ * updateLookup: insert/update/replace evicts entries whose filter matches new document, update/delete evicts entries
+ * whose result contains changed _id. Entries without known ids (counts) or with filter that can't be evaluated locally
+ * are evicted on any change. Results are cached only after change stream cursor of collection is open, without change
+ * streams (no replica set) every query goes to server. Writes of blocks evict collection synchronously with
+ * {@link #evict(String)}. Every caller gets own copy of cached JSON, so blocks can't change each other's results.
+ */
+@Log4j2
+public class MongoQueryCache {
+
+  private static final int QUEUE_SIZE = 10_000;
+
+  private final MongoDBService service;
+  private final JsonNodeCodec codec;
+  private final int maxSize;
+  private final long ttlMillis;
+  private final Map<String, CollectionState> collections = new ConcurrentHashMap<>();
+  private final LinkedHashMap<String, Entry> entries;
+
+  @Getter
+  private final AtomicLong hits = new AtomicLong();
+  @Getter
+  private final AtomicLong misses = new AtomicLong();
+  @Getter
+  private final AtomicLong invalidations = new AtomicLong();
+
+  public MongoQueryCache(MongoDBService service, JsonNodeCodec codec, int maxSize, long ttlMillis) {
+    this.service = service;
+    this.codec = codec;
+    this.maxSize = maxSize;
+    this.ttlMillis = ttlMillis;
+    this.entries = new LinkedHashMap<>(64, 0.75F, true);
+  }
+
+  /**
+   * @param key    normalized query shape: kind, filter, sort, limit, projection
+   * @param filter used to check whether changed document affects result
+   */
+  public State get(String collection, String key, BsonDocument filter, Supplier<Result> loader) {
+    CollectionState state = collections.computeIfAbsent(collection, this::subscribe);
+    if (!state.streaming) {
+      // changes can't be tracked yet (or at all), result may not be cached
+      misses.incrementAndGet();
+      Result result = loader.get();
+      return result.value();
+    }
+    String fullKey = collection + "|" + key;
+    long now = System.currentTimeMillis();
+    synchronized (this) {
+      Entry entry = entries.get(fullKey);
+      if (entry != null && entry.expiresAt() > now) {
+        hits.incrementAndGet();
+        return entry.result().copy();
+      }
+    }
+    misses.incrementAndGet();
+    long version = state.version.get();
+    Result result = loader.get();
+    synchronized (this) {
+      // skip result if collection was changed while query was running
+      if (state.streaming && state.version.get() == version) {
+        entries.put(fullKey, new Entry(collection, result, now + ttlMillis,
+          BsonFilterMatcher.tryCompile(filter), result.ids()));
+        state.keys.add(fullKey);
+        evictOverflow();
+      }
+    }
+    return result.copy();
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * Drop cached results of collection after write of block. Queries running concurrently are not cached
+   */
+  public void evict(String collection) {
+    CollectionState state = collections.get(collection);
+    if (state != null) {
+      state.version.incrementAndGet();
+      clear(state);
+    }
+  }
+
+  public boolean isStreaming(String collection) {
+    CollectionState state = collections.get(collection);
+    return state != null && state.streaming;
+  }
+
+  public void close() {
+    for (CollectionState state : collections.values()) {
+      if (state.subscription != null) {
+        state.subscription.close();
+      }
+    }
+    collections.clear();
+    synchronized (this) {
+      entries.clear();
+    }
+  }
+
+  private CollectionState subscribe(String collection) {
+    CollectionState state = new CollectionState();
+    try {
+      state.subscription = service.watch(collection, null, new BsonDocument(), FullDocument.UPDATE_LOOKUP, null,
+        QUEUE_SIZE, MongoChangeStreamDispatcher.OverflowPolicy.DropNewest,
+        event -> onChange(state, event),
+        ex -> {
+          log.info("Query cache of '{}' falls back to TTL invalidation: {}", collection, getErrorMessage(ex));
+          state.streaming = false;
+          state.version.incrementAndGet();
+          clear(state);
+        });
+      // watch returns before cursor is open, changes made before that would never evict entries
+      state.subscription.getStarted().whenComplete((ignore, ex) -> {
+        if (ex == null) {
+          state.streaming = true;
+        }
+      });
+    } catch (Exception ex) {
+      log.info("Query cache of '{}' falls back to TTL invalidation: {}", collection, getErrorMessage(ex));
+    }
+    return state;
+  }
+
+  private void onChange(CollectionState state, RawBsonDocument event) {
+    state.version.incrementAndGet();
+    long dropped = state.subscription == null ? 0 : state.subscription.getDropped().get();
+    if (dropped != state.dropped) {
+      // missed events, nothing precise can be said
+      state.dropped = dropped;
+      clear(state);
+      return;
+    }
+    String operationType = event.getString("operationType").getValue();
+    if (!operationType.equals("insert") && !operationType.equals("update") && !operationType.equals("replace")
+      && !operationType.equals("delete")) {
+      clear(state);
+      return;
+    }
+    BsonValue fullDocument = event.get("fullDocument");
+    BsonDocument document = fullDocument != null && fullDocument.isDocument() ? fullDocument.asDocument() : null;
+    BsonDocument documentKey = event.getDocument("documentKey", null);
+    JsonNode id = documentKey == null || !documentKey.containsKey("_id") ? null
+      : codec.decode(new BsonDocument("_id", documentKey.get("_id"))).get("_id");
+    boolean insert = operationType.equals("insert");
+
+    synchronized (this) {
+      for (Iterator<String> iterator = state.keys.iterator(); iterator.hasNext(); ) {
+        String key = iterator.next();
+        Entry entry = entries.get(key);
+        if (entry == null) {
+          iterator.remove();
+        } else if (isAffected(entry, insert, document, id)) {
+          entries.remove(key);
+          iterator.remove();
+          invalidations.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  private static boolean isAffected(Entry entry, boolean insert, @Nullable BsonDocument document,
+                                    @Nullable JsonNode id) {
+    if (entry.matcher() == null) {
+      return true;
+    }
+    if (document != null && entry.matcher().matches(document)) {
+      return true;
+    }
+    if (insert) {
+      return false;
+    }
+    // document may have left result
+    return entry.ids() == null || id == null || entry.ids().contains(id);
+  }
+
+  private void clear(CollectionState state) {
+    synchronized (this) {
+      for (String key : state.keys) {
+        if (entries.remove(key) != null) {
+          invalidations.incrementAndGet();
+        }
+      }
+      state.keys.clear();
+    }
+  }
+
+  private void evictOverflow() {
+    Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+    while (entries.size() > maxSize && iterator.hasNext()) {
+      Map.Entry<String, Entry> eldest = iterator.next();
+      iterator.remove();
+      CollectionState state = collections.get(eldest.getValue().collection());
+      if (state != null) {
+        state.keys.remove(eldest.getKey());
+      }
+    }
+  }
+
+  /**
+   * @param json mutable JSON of value, copied for every caller. Null for immutable values (counts)
+   * @param ids  _id of every returned document, or null if unknown (counts, projections without _id)
+   */
+  public record Result(@Nullable State value, @Nullable JsonNode json, @Nullable Set<JsonNode> ids) {
+
+    public Result(@Nullable State value, @Nullable Set<JsonNode> ids) {
+      this(value, null, ids);
+    }
+
+    public static Result json(@Nullable JsonNode json, @Nullable Set<JsonNode> ids) {
+      return new Result(json == null ? null : new JsonType(json), json, ids);
+    }
+
+    private @Nullable State copy() {
+      return json == null ? value : new JsonType(json.deepCopy());
+    }
+  }
+
+  private record Entry(String collection, Result result, long expiresAt, @Nullable BsonFilterMatcher matcher,
+                       @Nullable Set<JsonNode> ids) {
+
+  }
+
+  private static class CollectionState {
+
+    private final Set<String> keys = ConcurrentHashMap.newKeySet();
+    private final AtomicLong version = new AtomicLong();
+    private volatile MongoChangeStreamDispatcher.Subscription subscription;
+    private volatile boolean streaming;
+    private long dropped;
+  }
+}
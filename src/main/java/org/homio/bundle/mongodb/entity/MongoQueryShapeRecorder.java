@@ -0,0 +1,255 @@
+package org.homio.bundle.mongodb.entity;
+
+import com.mongodb.ExplainVerbosity;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import lombok.extern.log4j.Log4j2;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.homio.api.util.CommonUtils.getErrorMessage;
+
+/**
+ * Counts query shapes (filter fields split into equality and range, sort fields with direction, no values) issued by
+ * blocks. {@link #sample()} explains query plan of most frequent shapes without running them, and shapes with COLLSCAN
+ * winning plan get index suggestion ordered by equality-sort-range rule.
+ */
+@Log4j2
+public class MongoQueryShapeRecorder {
+
+  private static final int MAX_SHAPES = 500;
+  private static final int SAMPLE_SIZE = 10;
+  private static final Set<String> RANGE_OPERATORS =
+    Set.of("$gt", "$gte", "$lt", "$lte", "$ne", "$nin", "$regex", "$exists", "$not", "$size", "$all", "$elemMatch");
+
+  private final MongoDatabase database;
+  private final Map<String, Shape> shapes = new ConcurrentHashMap<>();
+
+  public MongoQueryShapeRecorder(MongoDatabase database) {
+    this.database = database;
+  }
+
+  /**
+   * @param operation find, count, update or delete
+   * @param sort      nullable
+   */
+  public void record(String collection, String operation, BsonDocument filter, @Nullable BsonDocument sort) {
+    Set<String> equality = new TreeSet<>();
+    Set<String> range = new TreeSet<>();
+    boolean disjunction = collectFields(filter, equality, range);
+    Map<String, Integer> sortFields = new LinkedHashMap<>();
+    if (sort != null) {
+      for (Map.Entry<String, BsonValue> entry : sort.entrySet()) {
+        sortFields.put(entry.getKey(), entry.getValue().isNumber() && entry.getValue().asNumber().intValue() < 0
+          ? -1 : 1);
+      }
+    }
+    String key = collection + "|" + operation + "|" + equality + "|" + range + "|" + sortFields + "|" + disjunction;
+    Shape shape = shapes.get(key);
+    if (shape == null) {
+      if (shapes.size() >= MAX_SHAPES) {
+        return;
+      }
+      shape = shapes.computeIfAbsent(key, k ->
+        new Shape(collection, operation, equality, range, sortFields, disjunction, filter, sort));
+    }
+    shape.count.incrementAndGet();
+  }
+
+  /**
+   * Explain most frequent shapes executed since their previous explain
+   */
+  public void sample() {
+    List<Shape> candidates = shapes.values().stream()
+      .filter(shape -> shape.count.get() > shape.explainedAtCount)
+      .sorted(Comparator.comparingLong((Shape shape) -> shape.count.get() - shape.explainedAtCount).reversed())
+      .limit(SAMPLE_SIZE)
+      .toList();
+    String origin = MongoCommandStats.getOrigin();
+    MongoCommandStats.setOrigin("index-advisor");
+    try {
+      for (Shape shape : candidates) {
+        explain(shape);
+      }
+    } finally {
+      MongoCommandStats.setOrigin(origin);
+    }
+  }
+
+  /**
+   * @return COLLSCAN shapes with suggested index, most frequent first
+   */
+  public List<Suggestion> getSuggestions() {
+    Map<String, Suggestion> suggestions = new LinkedHashMap<>();
+    shapes.values().stream()
+      .filter(shape -> shape.collScan && !shape.disjunction)
+      .sorted(Comparator.comparingLong((Shape shape) -> shape.count.get()).reversed())
+      .forEach(shape -> {
+        BsonDocument keys = shape.suggestIndex();
+        if (!keys.isEmpty()) {
+          suggestions.merge(shape.collection + "|" + keys.toJson(),
+            new Suggestion(shape.collection, keys, shape.count.get(), shape.docsExamined, shape.describe()),
+            (existing, added) -> new Suggestion(existing.collection(), existing.keys(),
+              existing.executions() + added.executions(), Math.max(existing.docsExamined(), added.docsExamined()),
+              existing.shape()));
+        }
+      });
+    return new ArrayList<>(suggestions.values());
+  }
+
+  /**
+   * Create all suggested indexes. Blocks until every index is built
+   *
+   * @return created index names
+   */
+  public List<String> applySuggestions() {
+    List<String> created = new ArrayList<>();
+    for (Suggestion suggestion : getSuggestions()) {
+      created.add(database.getCollection(suggestion.collection())
+        .createIndex(suggestion.keys()));
+    }
+    // re-explain with new indexes
+    shapes.values().forEach(shape -> shape.explainedAtCount = 0);
+    return created;
+  }
+
+  public long getCollScanCount() {
+    return shapes.values().stream().filter(shape -> shape.collScan).count();
+  }
+
+  private void explain(Shape shape) {
+    shape.explainedAtCount = shape.count.get();
+    try {
+      MongoCollection<Document> collection = database.getCollection(shape.collection);
+      FindIterable<Document> find = collection.find(shape.exampleFilter);
+      if (shape.exampleSort != null) {
+        find.sort(shape.exampleSort);
+      }
+      // planner only: execution stats would run the very collection scans advisor looks for
+      Document explain = find.explain(ExplainVerbosity.QUERY_PLANNER);
+      Document queryPlanner = explain.get("queryPlanner", Document.class);
+      shape.collScan = queryPlanner != null && containsCollScan(queryPlanner.get("winningPlan"));
+      shape.docsExamined = shape.collScan ? collection.estimatedDocumentCount() : 0;
+    } catch (Exception ex) {
+      log.debug("Unable to explain query shape {}: {}", shape.describe(), getErrorMessage(ex));
+    }
+  }
+
+  private static boolean containsCollScan(Object plan) {
+    if (plan instanceof Document document) {
+      if ("COLLSCAN".equals(document.get("stage"))) {
+        return true;
+      }
+      return document.values().stream().anyMatch(MongoQueryShapeRecorder::containsCollScan);
+    }
+    if (plan instanceof List<?> list) {
+      return list.stream().anyMatch(MongoQueryShapeRecorder::containsCollScan);
+    }
+    return false;
+  }
+
+  /**
+   * @return true if filter contains $or/$nor, which single compound index can't serve
+   */
+  private static boolean collectFields(BsonDocument filter, Set<String> equality, Set<String> range) {
+    boolean disjunction = false;
+    for (Map.Entry<String, BsonValue> entry : filter.entrySet()) {
+      String key = entry.getKey();
+      BsonValue value = entry.getValue();
+      if (key.equals("$and") && value.isArray()) {
+        for (BsonValue item : value.asArray()) {
+          if (item.isDocument()) {
+            disjunction |= collectFields(item.asDocument(), equality, range);
+          }
+        }
+      } else if (key.startsWith("$")) {
+        disjunction = true;
+      } else if (value.isDocument() && !value.asDocument().isEmpty()
+                 && value.asDocument().getFirstKey().startsWith("$")) {
+        Set<String> operators = value.asDocument().keySet();
+        if (operators.stream().anyMatch(RANGE_OPERATORS::contains)) {
+          range.add(key);
+        } else {
+          // $eq, $in
+          equality.add(key);
+        }
+      } else {
+        equality.add(key);
+      }
+    }
+    range.removeAll(equality);
+    return disjunction;
+  }
+
+  /**
+   * @param docsExamined estimated documents examined per run: collection size, since every run is a collection scan
+   */
+  public record Suggestion(String collection, BsonDocument keys, long executions, long docsExamined, String shape) {
+
+  }
+
+  private static class Shape {
+
+    private final String collection;
+    private final String operation;
+    private final Set<String> equality;
+    private final Set<String> range;
+    private final Map<String, Integer> sort;
+    private final boolean disjunction;
+    private final BsonDocument exampleFilter;
+    private final @Nullable BsonDocument exampleSort;
+    private final AtomicLong count = new AtomicLong();
+    private volatile long explainedAtCount;
+    private volatile boolean collScan;
+    private volatile long docsExamined;
+
+    private Shape(String collection, String operation, Set<String> equality, Set<String> range,
+                  Map<String, Integer> sort, boolean disjunction, BsonDocument exampleFilter,
+                  @Nullable BsonDocument exampleSort) {
+      this.collection = collection;
+      this.operation = operation;
+      this.equality = equality;
+      this.range = range;
+      this.sort = sort;
+      this.disjunction = disjunction;
+      this.exampleFilter = exampleFilter;
+      this.exampleSort = exampleSort;
+    }
+
+    private BsonDocument suggestIndex() {
+      BsonDocument keys = new BsonDocument();
+      for (String field : equality) {
+        keys.append(field, new BsonInt32(1));
+      }
+      sort.forEach((field, direction) -> {
+        if (!keys.containsKey(field)) {
+          keys.append(field, new BsonInt32(direction));
+        }
+      });
+      for (String field : range) {
+        if (!keys.containsKey(field)) {
+          keys.append(field, new BsonInt32(1));
+        }
+      }
+      return keys;
+    }
+
+    private String describe() {
+      return "%s %s eq%s range%s sort%s".formatted(operation, collection, equality, range, sort);
+    }
+  }
+}
@@ -0,0 +1,101 @@
+package org.homio.bundle.mongodb.entity;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.WriteModel;
+import lombok.extern.log4j.Log4j2;
+import org.bson.BsonDateTime;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.homio.api.util.CommonUtils.getErrorMessage;
+
+/**
+ * Persists latest handled change stream resume token per watch block into {@link #COLLECTION} of same database.
+ * Tokens are written asynchronously: every {@code checkpointEvents} updates or by owner's timer.
+ */
+@Log4j2
+public class MongoResumeTokenStore {
+
+  public static final String COLLECTION = "homio_watch_checkpoints";
+  private static final ReplaceOptions UPSERT = new ReplaceOptions().upsert(true);
+
+  private final MongoCollection<BsonDocument> collection;
+  private final Executor executor;
+  private final int checkpointEvents;
+  private final Map<String, BsonDocument> pending = new ConcurrentHashMap<>();
+  private final AtomicInteger pendingEvents = new AtomicInteger();
+  private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+  public MongoResumeTokenStore(MongoDatabase database, Executor executor, int checkpointEvents) {
+    this.collection = database.getCollection(COLLECTION, BsonDocument.class);
+    this.executor = executor;
+    this.checkpointEvents = checkpointEvents;
+  }
+
+  public @Nullable BsonDocument load(String key) {
+    BsonDocument pendingToken = pending.get(key);
+    if (pendingToken != null) {
+      return pendingToken;
+    }
+    BsonDocument checkpoint = collection.find(Filters.eq("_id", key)).first();
+    return checkpoint == null ? null : checkpoint.getDocument("token", null);
+  }
+
+  public void update(String key, BsonDocument token) {
+    pending.put(key, token);
+    if (pendingEvents.incrementAndGet() >= checkpointEvents && flushRequested.compareAndSet(false, true)) {
+      executor.execute(() -> {
+        try {
+          flush();
+        } finally {
+          flushRequested.set(false);
+        }
+      });
+    }
+  }
+
+  public void delete(String key) {
+    pending.remove(key);
+    collection.deleteOne(Filters.eq("_id", key));
+  }
+
+  public synchronized void flush() {
+    pendingEvents.set(0);
+    if (pending.isEmpty()) {
+      return;
+    }
+    List<WriteModel<BsonDocument>> writes = new ArrayList<>();
+    for (Map.Entry<String, BsonDocument> entry : pending.entrySet()) {
+      // keep token if it was replaced while flushing
+      if (!pending.remove(entry.getKey(), entry.getValue())) {
+        continue;
+      }
+      BsonDocument checkpoint = new BsonDocument("_id", new BsonString(entry.getKey()))
+        .append("token", entry.getValue())
+        .append("updated", new BsonDateTime(System.currentTimeMillis()));
+      writes.add(new ReplaceOneModel<>(Filters.eq("_id", entry.getKey()), checkpoint, UPSERT));
+    }
+    if (writes.isEmpty()) {
+      return;
+    }
+    try {
+      collection.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+    } catch (Exception ex) {
+      log.warn("Unable to save watch checkpoints: {}", getErrorMessage(ex));
+    }
+  }
+}
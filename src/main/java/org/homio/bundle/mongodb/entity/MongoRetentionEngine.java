@@ -0,0 +1,307 @@
+package org.homio.bundle.mongodb.entity;
+
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.conversions.Bson;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+import org.homio.api.Context;
+import org.homio.api.ContextBGP.ThreadContext;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+import java.util.zip.GZIPOutputStream;
+
+import static org.homio.api.util.CommonUtils.getErrorMessage;
+
+/**
+ * Applies retention policies of entity in batches: every batch selects at most 'batch size' expired documents,
+ * optionally appends them to gzip NDJSON archive (canonical extended JSON, so types survive re-import), deletes them by
+ * _id and pauses before next batch, so replication and other clients keep up. Age policy removes documents with date
+ * field older than max age, count policy removes documents with lowest _id above max count.
+ */
+@Log4j2
+public class MongoRetentionEngine {
+
+  private static final BsonDocument ID_PROJECTION = new BsonDocument("_id", new BsonInt32(1));
+  private static final JsonWriterSettings ARCHIVE_JSON = JsonWriterSettings.builder()
+    .outputMode(JsonMode.EXTENDED).build();
+
+  private final Context context;
+  private final MongoDBEntity entity;
+  private final MongoDatabase database;
+  private final List<Policy> policies;
+  private final AtomicBoolean running = new AtomicBoolean();
+  @Getter
+  private final AtomicLong deleted = new AtomicLong();
+  @Getter
+  private final AtomicLong archived = new AtomicLong();
+  private @Nullable ThreadContext<Void> scheduler;
+  private volatile boolean stopped;
+
+  public MongoRetentionEngine(Context context, MongoDBEntity entity, MongoDatabase database) {
+    this.context = context;
+    this.entity = entity;
+    this.database = database;
+    this.policies = parseValid(entity.getRetentionPolicies());
+  }
+
+  /**
+   * Parse policies separated by new line or ';': 'collection field 30d' for age policy (s/m/h/d units),
+   * 'collection 100000' for count policy
+   */
+  public static List<Policy> parse(String spec) {
+    List<Policy> policies = new ArrayList<>();
+    for (String line : spec.split("[;\\n]")) {
+      Policy policy = parseLine(line);
+      if (policy != null) {
+        policies.add(policy);
+      }
+    }
+    return policies;
+  }
+
+  /**
+   * Same as {@link #parse(String)}, but wrong lines are logged and skipped, so policy stored before validation can't
+   * break service
+   */
+  private static List<Policy> parseValid(String spec) {
+    List<Policy> policies = new ArrayList<>();
+    for (String line : spec.split("[;\\n]")) {
+      try {
+        Policy policy = parseLine(line);
+        if (policy != null) {
+          policies.add(policy);
+        }
+      } catch (IllegalArgumentException ex) {
+        log.warn("Skip retention policy: {}", ex.getMessage());
+      }
+    }
+    return policies;
+  }
+
+  /**
+   * @return null for blank line
+   */
+  private static @Nullable Policy parseLine(String line) {
+    String[] parts = line.trim().split("\\s+");
+    if (parts.length == 1 && parts[0].isEmpty()) {
+      return null;
+    }
+    if (parts.length == 2) {
+      return new Policy(parts[0], null, 0, parseLong(line, parts[1]));
+    }
+    if (parts.length == 3) {
+      return new Policy(parts[0], parts[1], parseDuration(line, parts[2]), 0);
+    }
+    throw new IllegalArgumentException("Wrong retention policy: '" + line.trim() + "'");
+  }
+
+  public void start() {
+    scheduler = context.bgp().builder("mongodb-retention-" + entity.getEntityID())
+      .interval(Duration.ofMillis(entity.getRetentionInterval()))
+      .execute(this::run);
+  }
+
+  public void stop() {
+    stopped = true;
+    if (scheduler != null) {
+      scheduler.cancel();
+      scheduler = null;
+    }
+  }
+
+  /**
+   * Start applying all policies in background with progress
+   *
+   * @return false if previous run is still in progress
+   */
+  public boolean run() {
+    if (stopped || !running.compareAndSet(false, true)) {
+      return false;
+    }
+    context.bgp().runWithProgress("mongodb-retention-" + entity.getEntityID()).execute(progressBar -> {
+      String origin = MongoCommandStats.getOrigin();
+      MongoCommandStats.setOrigin("retention");
+      try {
+        for (int i = 0; i < policies.size() && !stopped; i++) {
+          Policy policy = policies.get(i);
+          double base = i * 100D / policies.size();
+          double share = 100D / policies.size();
+          try {
+            apply(policy, (removed, fraction) ->
+              progressBar.progress(base + share * fraction, "%s: %d removed".formatted(policy.collection(), removed)));
+          } catch (Exception ex) {
+            log.warn("Unable to apply retention of '{}': {}", policy.collection(), getErrorMessage(ex));
+          }
+        }
+      } finally {
+        MongoCommandStats.setOrigin(origin);
+        running.set(false);
+      }
+    });
+    return true;
+  }
+
+  private void apply(Policy policy, Progress progress) throws IOException, InterruptedException {
+    MongoCollection<Document> collection = database.getCollection(policy.collection());
+    if (policy.field() != null) {
+      Bson filter = Filters.lt(policy.field(), new Date(System.currentTimeMillis() - policy.maxAgeMillis()));
+      // total is unknown without extra scan
+      removeBatches(policy, collection, filter, Sorts.ascending(policy.field()), Long.MAX_VALUE,
+        removed -> progress.update(removed, 0));
+    } else {
+      long excess = collection.estimatedDocumentCount() - policy.maxCount();
+      if (excess > 0) {
+        // ObjectId _id grows with insert time, so lowest _id are oldest documents
+        removeBatches(policy, collection, new BsonDocument(), Sorts.ascending("_id"), excess,
+          removed -> progress.update(removed, (double) removed / excess));
+      }
+    }
+  }
+
+  private void removeBatches(Policy policy, MongoCollection<Document> collection, Bson filter, Bson sort,
+                             long limit, LongConsumer onBatch) throws IOException, InterruptedException {
+    boolean archive = entity.isRetentionArchive();
+    Archive archiveFile = null;
+    long removed = 0;
+    try {
+      while (!stopped && removed < limit) {
+        int size = (int) Math.min(entity.getRetentionBatchSize(), limit - removed);
+        FindIterable<RawBsonDocument> find = collection.find(filter, RawBsonDocument.class).sort(sort).limit(size);
+        if (!archive) {
+          find.projection(ID_PROJECTION);
+        }
+        List<RawBsonDocument> batch = find.into(new ArrayList<>(size));
+        if (batch.isEmpty()) {
+          break;
+        }
+        if (archive) {
+          if (archiveFile == null) {
+            archiveFile = openArchive(policy.collection());
+          }
+          for (RawBsonDocument document : batch) {
+            archiveFile.writer.write(document.toJson(ARCHIVE_JSON));
+            archiveFile.writer.write('\n');
+          }
+          // documents must reach disk before they are deleted
+          archiveFile.sync();
+          archived.addAndGet(batch.size());
+        }
+        List<BsonValue> ids = batch.stream().map(document -> document.get("_id")).toList();
+        // document updated since find may not match policy anymore
+        long count = collection.deleteMany(Filters.and(Filters.in("_id", ids), filter)).getDeletedCount();
+        removed += count;
+        deleted.addAndGet(count);
+        onBatch.accept(removed);
+        if (batch.size() < size) {
+          break;
+        }
+        TimeUnit.MILLISECONDS.sleep(entity.getRetentionBatchPause());
+      }
+    } finally {
+      if (archiveFile != null) {
+        archiveFile.writer.close();
+      }
+    }
+    if (removed > 0) {
+      log.info("Retention removed {} documents from '{}'", removed, policy.collection());
+    }
+  }
+
+  private Archive openArchive(String collection) throws IOException {
+    Path directory = Path.of(entity.getRetentionArchiveDirectory()).toAbsolutePath();
+    Files.createDirectories(directory);
+    String timestamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+    String prefix = "%s.%s.%s".formatted(database.getName(), collection, timestamp);
+    // age and count policy of same collection may archive within same second, existing archive must never be replaced
+    Path file = directory.resolve(prefix + ".ndjson.gz");
+    for (int i = 1; ; i++) {
+      try {
+        Files.createFile(file);
+        break;
+      } catch (FileAlreadyExistsException ex) {
+        file = directory.resolve(prefix + "-" + i + ".ndjson.gz");
+      }
+    }
+    FileOutputStream out = new FileOutputStream(file.toFile());
+    // sync flush, so flushed batch is complete gzip block
+    return new Archive(new OutputStreamWriter(new GZIPOutputStream(out, 64 * 1024, true), StandardCharsets.UTF_8),
+      out);
+  }
+
+  private static long parseLong(String line, String value) {
+    long result;
+    try {
+      result = Long.parseLong(value);
+    } catch (NumberFormatException ex) {
+      throw new IllegalArgumentException("Wrong retention policy: '" + line.trim() + "'");
+    }
+    if (result < 0) {
+      throw new IllegalArgumentException("Wrong retention policy: '" + line.trim() + "'");
+    }
+    return result;
+  }
+
+  private static long parseDuration(String line, String value) {
+    char unit = value.charAt(value.length() - 1);
+    TimeUnit timeUnit = switch (unit) {
+      case 's' -> TimeUnit.SECONDS;
+      case 'm' -> TimeUnit.MINUTES;
+      case 'h' -> TimeUnit.HOURS;
+      case 'd' -> TimeUnit.DAYS;
+      default -> throw new IllegalArgumentException("Wrong retention policy: '" + line.trim() + "'");
+    };
+    return timeUnit.toMillis(parseLong(line, value.substring(0, value.length() - 1)));
+  }
+
+  /**
+   * @param field    date field of age policy, null for count policy
+   * @param maxCount documents to keep by count policy
+   */
+  public record Policy(String collection, @Nullable String field, long maxAgeMillis, long maxCount) {
+
+  }
+
+  private record Archive(Writer writer, FileOutputStream file) {
+
+    /**
+     * Flush gzip block and force it to storage device, page cache alone doesn't survive crash
+     */
+    private void sync() throws IOException {
+      writer.flush();
+      file.getFD().sync();
+    }
+  }
+
+  private interface Progress {
+
+    void update(long removed, double fraction);
+  }
+}
@@ -0,0 +1,125 @@
+package org.homio.bundle.mongodb.entity;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.CreateCollectionOptions;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.TimeSeriesGranularity;
+import com.mongodb.client.model.TimeSeriesOptions;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import org.bson.Document;
+import org.homio.api.Context;
+import org.homio.api.ContextBGP.ThreadContext;
+import org.homio.api.state.DecimalType;
+import org.homio.api.state.OnOffType;
+import org.homio.api.state.State;
+import org.jetbrains.annotations.Nullable;
+
+import java.time.Duration;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Writes state changes of selected Homio variables/devices into time-series collection as
+ * {ts: date, source: key, value: number|boolean|string}. Inserts are batched by {@link MongoWriteBuffer}. Event
+ * listener never waits for full queue: states are dropped and counted while MongoDB can't keep up.
+ */
+@Log4j2
+public class MongoStateHistorySink {
+
+  public static final String TIME_FIELD = "ts";
+  public static final String META_FIELD = "source";
+  private static final String LISTENER_KEY = "mongodb-history-";
+
+  private final Context context;
+  private final MongoDBEntity entity;
+  private final List<String> sources;
+  @Getter
+  private final MongoWriteBuffer buffer;
+  private @Nullable ThreadContext<Void> flusher;
+  private volatile boolean dropping;
+
+  public MongoStateHistorySink(Context context, MongoDBEntity entity, MongoDatabase database,
+                               ExecutorService executor) {
+    this.context = context;
+    this.entity = entity;
+    this.sources = Stream.of(entity.getHistorySources().split(","))
+      .map(String::trim).filter(source -> !source.isEmpty()).distinct().toList();
+    createTimeSeriesCollection(database, entity.getHistoryCollection(), TIME_FIELD, META_FIELD,
+      TimeSeriesGranularity.SECONDS, entity.getHistoryExpireAfter());
+    this.buffer = new MongoWriteBuffer(database.getCollection(entity.getHistoryCollection()),
+      entity.getHistoryBatchSize(), entity.getHistoryBatchSize() * 10, executor);
+  }
+
+  /**
+   * Create time-series collection unless collection with same name already exists
+   *
+   * @param metaField          nullable
+   * @param expireAfterSeconds 0 to keep documents forever
+   */
+  public static void createTimeSeriesCollection(MongoDatabase database, String name, String timeField,
+                                                @Nullable String metaField, TimeSeriesGranularity granularity,
+                                                long expireAfterSeconds) {
+    TimeSeriesOptions timeSeriesOptions = new TimeSeriesOptions(timeField).granularity(granularity);
+    if (metaField != null && !metaField.isEmpty()) {
+      timeSeriesOptions.metaField(metaField);
+    }
+    CreateCollectionOptions options = new CreateCollectionOptions().timeSeriesOptions(timeSeriesOptions);
+    if (expireAfterSeconds > 0) {
+      options.expireAfter(expireAfterSeconds, TimeUnit.SECONDS);
+    }
+    try {
+      database.createCollection(name, options);
+    } catch (MongoCommandException ex) {
+      // NamespaceExists
+      if (ex.getErrorCode() != 48) {
+        throw ex;
+      }
+    }
+  }
+
+  public void start() {
+    for (String source : sources) {
+      context.event().addEventListener(source, LISTENER_KEY + entity.getEntityID(), state -> write(source, state));
+    }
+    flusher = context.bgp().builder("mongodb-history-" + entity.getEntityID())
+      .interval(Duration.ofMillis(entity.getHistoryFlushInterval()))
+      .execute(buffer::flush);
+  }
+
+  public void stop() {
+    for (String source : sources) {
+      context.event().removeEventListener(source, LISTENER_KEY + entity.getEntityID());
+    }
+    if (flusher != null) {
+      flusher.cancel();
+      flusher = null;
+    }
+    buffer.flush();
+  }
+
+  private void write(String source, @Nullable State state) {
+    if (state == null) {
+      return;
+    }
+    Document document = new Document(TIME_FIELD, new Date()).append(META_FIELD, source);
+    if (state instanceof DecimalType decimal) {
+      document.append("value", decimal.getValue().doubleValue());
+    } else if (state instanceof OnOffType onOff) {
+      document.append("value", onOff.boolValue());
+    } else {
+      document.append("value", state.toString());
+    }
+    if (buffer.offer(new InsertOneModel<>(document))) {
+      dropping = false;
+    } else if (!dropping) {
+      // once per overflow period, not per event
+      dropping = true;
+      log.warn("History queue of '{}' is full. Dropping states until it drains", entity.getHistoryCollection());
+    }
+  }
+}
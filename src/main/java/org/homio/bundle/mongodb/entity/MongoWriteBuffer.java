@@ -0,0 +1,180 @@
+package org.homio.bundle.mongodb.entity;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.WriteModel;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.homio.api.util.CommonUtils.getErrorMessage;
+
+/**
+ * Write-behind queue of a single collection. Operations are grouped into ordered bulkWrite calls, flushed when batch
+ * size is reached or by owner's timer. Order is kept, so insert then update of same document within one batch applies
+ * as issued. Failed operation is skipped and rest of its batch is written. Producers are blocked for up to
+ * {@link #ENQUEUE_TIMEOUT_MS} when queue is full.
+ */
+@Log4j2
+public class MongoWriteBuffer {
+
+  private static final BulkWriteOptions ORDERED = new BulkWriteOptions().ordered(true);
+  private static final long ENQUEUE_TIMEOUT_MS = 30_000;
+
+  private final MongoCollection<Document> collection;
+  private final BlockingQueue<WriteModel<Document>> queue;
+  private final int batchSize;
+  private final Executor executor;
+  private final ReentrantLock flushLock = new ReentrantLock();
+  private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+  @Getter
+  private final AtomicLong flushCount = new AtomicLong();
+  @Getter
+  private final AtomicLong writtenCount = new AtomicLong();
+  @Getter
+  private final AtomicLong failedCount = new AtomicLong();
+  @Getter
+  private final AtomicLong backpressureCount = new AtomicLong();
+  @Getter
+  private final AtomicLong droppedCount = new AtomicLong();
+  private final AtomicLong totalFlushNanos = new AtomicLong();
+  private final AtomicLong maxFlushNanos = new AtomicLong();
+
+  public MongoWriteBuffer(MongoCollection<Document> collection, int batchSize, int capacity, Executor executor) {
+    this.collection = collection;
+    this.batchSize = batchSize;
+    this.queue = new ArrayBlockingQueue<>(Math.max(capacity, batchSize));
+    this.executor = executor;
+  }
+
+  public String getName() {
+    return collection.getNamespace().getCollectionName();
+  }
+
+  public int getQueueDepth() {
+    return queue.size();
+  }
+
+  public double getAvgFlushMillis() {
+    long count = flushCount.get();
+    return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalFlushNanos.get()) / 1000D / count;
+  }
+
+  public double getMaxFlushMillis() {
+    return TimeUnit.NANOSECONDS.toMicros(maxFlushNanos.get()) / 1000D;
+  }
+
+  public void add(WriteModel<Document> model) {
+    if (!queue.offer(model)) {
+      requestFlush();
+      backpressureCount.incrementAndGet();
+      try {
+        if (!queue.offer(model, ENQUEUE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+          throw new IllegalStateException("Write-behind queue of collection '" + getName() + "' is full");
+        }
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while waiting for write-behind queue of '" + getName() + "'");
+      }
+    }
+    if (queue.size() >= batchSize) {
+      requestFlush();
+    }
+  }
+
+  /**
+   * Enqueue without waiting, for producers that must not block (event listeners)
+   *
+   * @return false if queue is full and operation was dropped
+   */
+  public boolean offer(WriteModel<Document> model) {
+    if (!queue.offer(model)) {
+      requestFlush();
+      droppedCount.incrementAndGet();
+      return false;
+    }
+    if (queue.size() >= batchSize) {
+      requestFlush();
+    }
+    return true;
+  }
+
+  /**
+   * Drain and write all pending operations on caller thread
+   */
+  public void flush() {
+    flushLock.lock();
+    String origin = MongoCommandStats.getOrigin();
+    MongoCommandStats.setOrigin("write-behind");
+    try {
+      List<WriteModel<Document>> batch = new ArrayList<>(batchSize);
+      while (queue.drainTo(batch, batchSize) > 0) {
+        write(batch);
+        batch.clear();
+      }
+    } finally {
+      MongoCommandStats.setOrigin(origin);
+      flushLock.unlock();
+    }
+  }
+
+  private void requestFlush() {
+    if (flushRequested.compareAndSet(false, true)) {
+      executor.execute(() -> {
+        try {
+          flush();
+        } finally {
+          flushRequested.set(false);
+        }
+      });
+    }
+  }
+
+  private void write(List<WriteModel<Document>> batch) {
+    long started = System.nanoTime();
+    List<WriteModel<Document>> remaining = batch;
+    try {
+      while (!remaining.isEmpty()) {
+        try {
+          collection.bulkWrite(remaining, ORDERED);
+          writtenCount.addAndGet(remaining.size());
+          remaining = List.of();
+        } catch (MongoBulkWriteException ex) {
+          if (ex.getWriteErrors().isEmpty()) {
+            // write concern error only, every operation was applied on primary
+            writtenCount.addAndGet(remaining.size());
+            log.error("Write-behind flush of '{}' not acknowledged: {}", getName(), getErrorMessage(ex));
+            break;
+          }
+          // ordered bulk stops at first error, operations after it are not applied yet
+          int index = ex.getWriteErrors().get(0).getIndex();
+          failedCount.incrementAndGet();
+          writtenCount.addAndGet(index);
+          log.error("Write-behind operation of '{}' failed: {}", getName(), getErrorMessage(ex));
+          remaining = remaining.subList(index + 1, remaining.size());
+        }
+      }
+    } catch (Exception ex) {
+      failedCount.addAndGet(remaining.size());
+      log.error("Write-behind flush of '{}' failed. Dropped {} operations: {}", getName(), remaining.size(),
+        getErrorMessage(ex));
+    } finally {
+      long elapsed = System.nanoTime() - started;
+      flushCount.incrementAndGet();
+      totalFlushNanos.addAndGet(elapsed);
+      maxFlushNanos.accumulateAndGet(elapsed, Math::max);
+    }
+  }
+}
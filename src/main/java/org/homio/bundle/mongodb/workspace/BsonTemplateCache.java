@@ -0,0 +1,283 @@
+package org.homio.bundle.mongodb.workspace;
+
+import org.bson.BsonArray;
+import org.bson.BsonBoolean;
+import org.bson.BsonDocument;
+import org.bson.BsonDouble;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonNull;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.json.JsonParseException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Bounded LRU cache of pre-parsed block JSON inputs. Inputs without context variables are stored as immutable
+ * {@link RawBsonDocument}. Inputs with '${...}' variables are parsed once with slot markers in place of variables and
+ * rendered by substituting resolved values into a copy of the parsed tree. Resolved input that can't be split into
+ * values unambiguously, e.g. adjacent variables or values containing the literal that follows them, is parsed as is.
+ */
+public class BsonTemplateCache {
+
+  private static final BsonDocumentCodec BSON_DOCUMENT_CODEC = new BsonDocumentCodec();
+  private static final Pattern PLACEHOLDER = Pattern.compile("\\$\\{[^}]+}");
+  private static final Pattern NUMBER = Pattern.compile("-?\\d+(\\.\\d+)?([eE][+-]?\\d+)?");
+  private static final String SLOT_PREFIX = "__homio_slot_";
+  private static final String SLOT_SUFFIX = "__";
+
+  private final Map<String, Template> cache;
+
+  public BsonTemplateCache(int maxSize) {
+    this.cache = Collections.synchronizedMap(new LinkedHashMap<>(64, 0.75F, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Template> eldest) {
+        return size() > maxSize;
+      }
+    });
+  }
+
+  /**
+   * @return immutable parsed document for json without context variables
+   */
+  public BsonDocument get(String json) {
+    Template template = getTemplate(json);
+    return template.document != null ? template.document : BsonDocument.parse(json);
+  }
+
+  /**
+   * @param template raw block input with optional '${...}' variables
+   * @param resolver returns input with resolved variables
+   */
+  public BsonDocument render(String template, Supplier<String> resolver) {
+    String resolved = resolver.get();
+    if (resolved.equals(template)) {
+      return get(template);
+    }
+    Template compiled = getTemplate(template);
+    if (compiled.pattern == null) {
+      return BsonDocument.parse(resolved);
+    }
+    Matcher matcher = compiled.pattern.matcher(resolved);
+    if (!matcher.matches()) {
+      return BsonDocument.parse(resolved);
+    }
+    // shortest and longest split are equal only if there is exactly one way to split resolved input
+    Matcher greedy = compiled.greedyPattern.matcher(resolved);
+    greedy.matches();
+    String[] values = new String[matcher.groupCount()];
+    for (int i = 0; i < values.length; i++) {
+      if (matcher.end(i + 1) != greedy.end(i + 1)) {
+        return BsonDocument.parse(resolved);
+      }
+      values[i] = matcher.group(i + 1);
+    }
+    BsonDocument document = compiled.render(values);
+    return document != null ? document : BsonDocument.parse(resolved);
+  }
+
+  public int size() {
+    return cache.size();
+  }
+
+  private Template getTemplate(String json) {
+    Template template = cache.get(json);
+    if (template == null) {
+      template = Template.compile(json);
+      cache.put(json, template);
+    }
+    return template;
+  }
+
+  private static String marker(int slot) {
+    return SLOT_PREFIX + slot + SLOT_SUFFIX;
+  }
+
+  private static BsonValue parseValue(String value) {
+    String text = value.trim();
+    switch (text) {
+      case "true":
+        return BsonBoolean.TRUE;
+      case "false":
+        return BsonBoolean.FALSE;
+      case "null":
+        return BsonNull.VALUE;
+    }
+    if (NUMBER.matcher(text).matches()) {
+      if (text.indexOf('.') < 0 && text.indexOf('e') < 0 && text.indexOf('E') < 0) {
+        try {
+          long number = Long.parseLong(text);
+          return number == (int) number ? new BsonInt32((int) number) : new BsonInt64(number);
+        } catch (NumberFormatException ignore) {
+          // beyond Int64, shell reads such literal as double
+        }
+      }
+      return new BsonDouble(Double.parseDouble(text));
+    }
+    try {
+      return BsonDocument.parse("{v:" + text + "}").get("v");
+    } catch (JsonParseException ex) {
+      return new BsonString(value);
+    }
+  }
+
+  private static class Template {
+
+    // not null if json has no context variables
+    private RawBsonDocument document;
+    // not null if json has context variables
+    private BsonDocument shape;
+    private Pattern pattern;
+    private Pattern greedyPattern;
+    // quote char of string that contains variable, 0 if variable is a value on its own
+    private char[] quotes;
+
+    private static Template compile(String json) {
+      Template template = new Template();
+      Matcher matcher = PLACEHOLDER.matcher(json);
+      if (!matcher.find()) {
+        template.document = new RawBsonDocument(BsonDocument.parse(json), BSON_DOCUMENT_CODEC);
+        return template;
+      }
+
+      StringBuilder shape = new StringBuilder(json.length());
+      StringBuilder regex = new StringBuilder("^");
+      StringBuilder greedyRegex = new StringBuilder("^");
+      List<Character> quotes = new ArrayList<>();
+      int position = 0;
+      do {
+        String literal = json.substring(position, matcher.start());
+        if (literal.isEmpty() && !quotes.isEmpty()) {
+          // adjacent variables like '${a}${b}' have no boundary between resolved values
+          return template;
+        }
+        char quote = getQuote(json, matcher.start());
+        int slot = quotes.size();
+        shape.append(literal).append(quote != 0 ? marker(slot) : "\"" + marker(slot) + "\"");
+        regex.append(Pattern.quote(literal)).append("(.*?)");
+        greedyRegex.append(Pattern.quote(literal)).append("(.*)");
+        quotes.add(quote);
+        position = matcher.end();
+      } while (matcher.find());
+      String tail = json.substring(position);
+      shape.append(tail);
+      regex.append(Pattern.quote(tail)).append("$");
+      greedyRegex.append(Pattern.quote(tail)).append("$");
+
+      try {
+        template.shape = BsonDocument.parse(shape.toString());
+        template.pattern = Pattern.compile(regex.toString(), Pattern.DOTALL);
+        template.greedyPattern = Pattern.compile(greedyRegex.toString(), Pattern.DOTALL);
+        template.quotes = new char[quotes.size()];
+        for (int i = 0; i < quotes.size(); i++) {
+          template.quotes[i] = quotes.get(i);
+        }
+      } catch (JsonParseException ex) {
+        // variables in unsupported position. fallback to parse of resolved json
+        template.shape = null;
+        template.pattern = null;
+      }
+      return template;
+    }
+
+    private static char getQuote(String json, int end) {
+      char quote = 0;
+      for (int i = 0; i < end; i++) {
+        char ch = json.charAt(i);
+        if (quote != 0) {
+          if (ch == '\\') {
+            i++;
+          } else if (ch == quote) {
+            quote = 0;
+          }
+        } else if (ch == '"' || ch == '\'') {
+          quote = ch;
+        }
+      }
+      return quote;
+    }
+
+    /**
+     * @return rendered document or null if value inside string is not a valid escaped string content
+     */
+    private BsonDocument render(String[] values) {
+      BsonValue[] parsed = new BsonValue[values.length];
+      String[] unescaped = new String[values.length];
+      for (int i = 0; i < values.length; i++) {
+        if (quotes[i] == 0) {
+          parsed[i] = parseValue(values[i]);
+          unescaped[i] = values[i];
+        } else {
+          unescaped[i] = unescape(values[i], quotes[i]);
+          if (unescaped[i] == null) {
+            return null;
+          }
+        }
+      }
+      return renderDocument(shape, unescaped, parsed);
+    }
+
+    private static String unescape(String value, char quote) {
+      if (value.indexOf('\\') < 0 && value.indexOf(quote) < 0) {
+        return value;
+      }
+      try {
+        BsonValue string = BsonDocument.parse("{v:" + quote + value + quote + "}").get("v");
+        return string.isString() ? string.asString().getValue() : null;
+      } catch (JsonParseException ex) {
+        return null;
+      }
+    }
+
+    private BsonDocument renderDocument(BsonDocument source, String[] values, BsonValue[] parsed) {
+      BsonDocument result = new BsonDocument();
+      for (Map.Entry<String, BsonValue> entry : source.entrySet()) {
+        result.put(renderString(entry.getKey(), values), renderValue(entry.getValue(), values, parsed));
+      }
+      return result;
+    }
+
+    private BsonValue renderValue(BsonValue value, String[] values, BsonValue[] parsed) {
+      if (value.isDocument()) {
+        return renderDocument(value.asDocument(), values, parsed);
+      }
+      if (value.isArray()) {
+        BsonArray array = new BsonArray();
+        for (BsonValue item : value.asArray()) {
+          array.add(renderValue(item, values, parsed));
+        }
+        return array;
+      }
+      if (value.isString() && value.asString().getValue().contains(SLOT_PREFIX)) {
+        String text = value.asString().getValue();
+        for (int i = 0; i < parsed.length; i++) {
+          if (parsed[i] != null && text.equals(marker(i))) {
+            return parsed[i];
+          }
+        }
+        return new BsonString(renderString(text, values));
+      }
+      return value;
+    }
+
+    private String renderString(String text, String[] values) {
+      if (!text.contains(SLOT_PREFIX)) {
+        return text;
+      }
+      for (int i = 0; i < values.length; i++) {
+        text = text.replace(marker(i), values[i]);
+      }
+      return text;
+    }
+  }
+}
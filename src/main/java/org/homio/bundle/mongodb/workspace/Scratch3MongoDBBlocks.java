@@ -1,46 +1,92 @@
 package org.homio.bundle.mongodb.workspace;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
-import com.mongodb.MongoCommandException;
-import com.mongodb.client.ChangeStreamIterable;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.mongodb.MongoInterruptedException;
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.AggregateIterable;
 import com.mongodb.client.FindIterable;
-import com.mongodb.client.MongoChangeStreamCursor;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
-import com.mongodb.client.model.Aggregates;
-import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.CountOptions;
+import com.mongodb.client.model.DeleteManyModel;
+import com.mongodb.client.model.DeleteOneModel;
+import com.mongodb.client.model.EstimatedDocumentCountOptions;
 import com.mongodb.client.model.IndexOptions;
 import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.UpdateManyModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.TimeSeriesGranularity;
 import com.mongodb.client.model.UpdateOptions;
-import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
 import com.mongodb.client.model.changestream.OperationType;
 import lombok.Getter;
-import lombok.SneakyThrows;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.log4j.Log4j2;
+import org.bson.BsonDateTime;
 import org.bson.BsonDocument;
 import org.bson.BsonDocumentReader;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.BsonValue;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
 import org.bson.codecs.DecoderContext;
 import org.bson.codecs.DocumentCodec;
 import org.bson.conversions.Bson;
 import org.homio.api.Context;
 import org.homio.api.state.DecimalType;
 import org.homio.api.state.JsonType;
+import org.homio.api.state.OnOffType;
 import org.homio.api.state.State;
+import org.homio.api.state.StringType;
 import org.homio.api.workspace.WorkspaceBlock;
 import org.homio.api.workspace.scratch.MenuBlock;
 import org.homio.api.workspace.scratch.Scratch3Block;
 import org.homio.api.workspace.scratch.Scratch3ExtensionBlocks;
 import org.homio.bundle.mongodb.MongoDBEntrypoint;
+import org.homio.bundle.mongodb.codec.JsonNodeCodec;
+import org.homio.bundle.mongodb.entity.MongoChangeStreamDispatcher;
+import org.homio.bundle.mongodb.entity.MongoCollectionTransfer;
+import org.homio.bundle.mongodb.entity.MongoCommandStats;
 import org.homio.bundle.mongodb.entity.MongoDBEntity;
+import org.homio.bundle.mongodb.entity.MongoDBService;
+import org.homio.bundle.mongodb.entity.MongoMaterializedCounts;
+import org.homio.bundle.mongodb.entity.MongoPartitionedScan;
+import org.homio.bundle.mongodb.entity.MongoQueryCache;
+import org.homio.bundle.mongodb.entity.MongoQueryShapeRecorder;
+import org.homio.bundle.mongodb.entity.MongoStateHistorySink;
+import org.homio.bundle.mongodb.entity.MongoWriteBuffer;
+import org.jetbrains.annotations.Nullable;
 import org.springframework.stereotype.Component;
 import org.springframework.util.StringUtils;
 
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
-import static java.util.Collections.singletonList;
 import static org.apache.commons.lang3.StringUtils.isEmpty;
 import static org.homio.api.util.CommonUtils.getErrorMessage;
 import static org.homio.api.util.JsonUtils.OBJECT_MAPPER;
@@ -51,6 +97,23 @@ import static org.homio.api.util.JsonUtils.OBJECT_MAPPER;
 @Component
 public class Scratch3MongoDBBlocks extends Scratch3ExtensionBlocks {
 
+  private static final String READ_OPTIONS = ", Read: [READ_PREF], Max staleness sec: [MAX_STALENESS]";
+  private static final DocumentCodec DOCUMENT_CODEC = new DocumentCodec();
+  private static final DecoderContext DECODER_CONTEXT = DecoderContext.builder().build();
+  private static final ScheduledThreadPoolExecutor TIMEOUTS = new ScheduledThreadPoolExecutor(1, runnable -> {
+    Thread thread = new Thread(runnable, "mongodb-block-timeouts");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  static {
+    TIMEOUTS.setRemoveOnCancelPolicy(true);
+  }
+
+  private final BsonTemplateCache templates = new BsonTemplateCache(512);
+  private final Map<String, CollectionHandle> collectionHandles = new ConcurrentHashMap<>();
+  // async operations per block id, cancelled on block release
+  private final Map<String, Set<Future<?>>> inFlight = new ConcurrentHashMap<>();
   private final MenuBlock.ServerMenuBlock mongoDbMenu;
   private final MenuBlock.ServerMenuBlock mongoDbAndColMenu;
   private final Scratch3Block createDocumentCommand;
@@ -61,6 +124,7 @@ public class Scratch3MongoDBBlocks extends Scratch3ExtensionBlocks {
   private final Scratch3Block deleteDocumentCommand;
   private final Scratch3Block dropCollectionCommand;
   private final MenuBlock.StaticMenuBlock<ExtendedOperationType> operationTypeMenu;
+  private final MenuBlock.StaticMenuBlock<FullDocument> fullDocumentMenu;
   private final Scratch3Block watchCommand;
   private final Scratch3Block countDocumentCommand;
   private final Scratch3Block dropIndexCommand;
@@ -68,6 +132,19 @@ public class Scratch3MongoDBBlocks extends Scratch3ExtensionBlocks {
   private final Scratch3Block createIndexCommand;
   private final Scratch3Block readDocumentCommand;
   private final Scratch3Block readDocumentsCommand;
+  private final Scratch3Block readFieldCommand;
+  private final Scratch3Block forEachDocumentCommand;
+  private final Scratch3Block aggregateCommand;
+  private final Scratch3Block forEachAggregateCommand;
+  private final Scratch3Block downsampleCommand;
+  private final MenuBlock.StaticMenuBlock<TimeSeriesGranularity> granularityMenu;
+  private final MenuBlock.StaticMenuBlock<DownsampleFunction> downsampleFunctionMenu;
+  private final MenuBlock.StaticMenuBlock<MongoCollectionTransfer.Format> exportFormatMenu;
+  private final MenuBlock.StaticMenuBlock<MongoCollectionTransfer.FileCompression> fileCompressionMenu;
+  private final MenuBlock.StaticMenuBlock<ReadPreferenceOption> readPreferenceMenu;
+  private final MenuBlock.StaticMenuBlock<WriteConcernOption> writeConcernMenu;
+  private final Scratch3Block exportCommand;
+  private final Scratch3Block importCommand;
 
   public Scratch3MongoDBBlocks(Context context, MongoDBEntrypoint mongoDBEntrypoint) {
     super("#007818", context, mongoDBEntrypoint, null);
@@ -81,155 +158,674 @@ public class Scratch3MongoDBBlocks extends Scratch3ExtensionBlocks {
 
     this.operationTypeMenu = menuStatic("operationType", ExtendedOperationType.class, ExtendedOperationType.ANY)
       .setMultiSelect(" | ");
+    this.fullDocumentMenu = menuStatic("fullDocument", FullDocument.class, FullDocument.DEFAULT);
+    this.granularityMenu = menuStatic("granularity", TimeSeriesGranularity.class, TimeSeriesGranularity.SECONDS);
+    this.downsampleFunctionMenu = menuStatic("downsampleFunc", DownsampleFunction.class, DownsampleFunction.Avg);
+    this.readPreferenceMenu = menuStatic("readPreference", ReadPreferenceOption.class, ReadPreferenceOption.Default);
+    this.writeConcernMenu = menuStatic("writeConcern", WriteConcernOption.class, WriteConcernOption.Default);
+    this.exportFormatMenu = menuStatic("exportFormat", MongoCollectionTransfer.Format.class,
+      MongoCollectionTransfer.Format.Bson);
+    this.fileCompressionMenu = menuStatic("fileCompression", MongoCollectionTransfer.FileCompression.class,
+      MongoCollectionTransfer.FileCompression.Zstd);
 
     // commands
     this.watchCommand = ofDBC(blockHat(10, "watch",
-      "Watch changes of [DBC] | Filter: [FILTER], ChangeTypes: [OT]", this::watchCommand));
+      "Watch changes of [DBC] | Filter: [FILTER], ChangeTypes: [OT], Full doc: [FD], Resume: [RESUME]",
+      block -> traced(block, this::watchCommand)));
     this.watchCommand.addArgument("FILTER", "{}");
     this.watchCommand.addArgument("OT", this.operationTypeMenu);
+    this.watchCommand.addArgument("FD", this.fullDocumentMenu);
+    this.watchCommand.addArgument("RESUME", false);
 
     this.createDocumentCommand = ofDBC(blockCommand(20, "createDoc",
-      "Insert doc [VALUE] of [DBC]", this::createCommand));
+      "Insert doc [VALUE] of [DBC] | Write concern: [WRITE_CONCERN]", block -> traced(block, this::createCommand)));
     this.createDocumentCommand.addArgument(VALUE, "{test:1}");
+    this.createDocumentCommand.addArgument("WRITE_CONCERN", this.writeConcernMenu);
 
     this.countDocumentCommand = ofDBC(blockReporter(30, "countDoc",
-      "Count docs [FILTER] of [DBC]", this::countCommand));
+      "Count docs [FILTER] of [DBC] | Hint: [HINT], Max time ms: [MAX_TIME], Materialize: [MATERIALIZE]" +
+        READ_OPTIONS, block -> traced(block, this::countCommand)));
     this.countDocumentCommand.addArgument("FILTER", "{}");
+    this.countDocumentCommand.addArgument("HINT", "");
+    this.countDocumentCommand.addArgument("MAX_TIME", 0);
+    this.countDocumentCommand.addArgument("MATERIALIZE", false);
+    ofReadPreference(this.countDocumentCommand);
+
+    this.readFieldCommand = ofDBC(blockReporter(33, "readField",
+      "Read field [FIELD] of doc [FILTER] of [DBC] | Sort: [SORT], Hint: [HINT], Max time ms: [MAX_TIME]" +
+        READ_OPTIONS, block -> traced(block, this::readFieldCommand)));
+    this.readFieldCommand.addArgument("FIELD", "value");
+    this.readFieldCommand.addArgument("FILTER", "{}");
+    this.readFieldCommand.addArgument("SORT", "{}");
+    this.readFieldCommand.addArgument("HINT", "");
+    this.readFieldCommand.addArgument("MAX_TIME", 0);
+    ofReadPreference(this.readFieldCommand);
 
     this.readDocumentCommand = ofDBC(blockReporter(34, "readDoc",
-      "Read doc [FILTER] of [DBC]", this::readDocumentCommand));
+      "Read doc [FILTER] of [DBC] | Projection: [PROJECTION], Hint: [HINT], Max time ms: [MAX_TIME]" +
+        READ_OPTIONS, block -> traced(block, this::readDocumentCommand)));
     this.readDocumentCommand.addArgument("FILTER", "{}");
+    this.readDocumentCommand.addArgument("PROJECTION", "");
+    this.readDocumentCommand.addArgument("HINT", "");
+    this.readDocumentCommand.addArgument("MAX_TIME", 0);
+    ofReadPreference(this.readDocumentCommand);
 
     this.readDocumentsCommand = ofDBC(blockReporter(35, "readDocs",
-      "Read docs [FILTER] of [DBC] | Sort: [SORT], Limit: [LIMIT]", this::readDocumentsCommand));
+      "Read docs [FILTER] of [DBC] | Sort: [SORT], Limit: [LIMIT], Projection: [PROJECTION], Hint: [HINT], " +
+        "Batch size: [BATCH_SIZE], Max time ms: [MAX_TIME]" + READ_OPTIONS,
+      block -> traced(block, this::readDocumentsCommand)));
     this.readDocumentsCommand.addArgument("FILTER", "{}");
     this.readDocumentsCommand.addArgument("SORT", "{}");
     this.readDocumentsCommand.addArgument("LIMIT", 100);
+    this.readDocumentsCommand.addArgument("PROJECTION", "");
+    this.readDocumentsCommand.addArgument("HINT", "");
+    this.readDocumentsCommand.addArgument("BATCH_SIZE", 0);
+    this.readDocumentsCommand.addArgument("MAX_TIME", 0);
+    ofReadPreference(this.readDocumentsCommand);
+
+    this.forEachDocumentCommand = ofDBC(blockHat(36, "forEachDoc",
+      "For each doc [FILTER] of [DBC] | Sort: [SORT], Limit: [LIMIT], Batch size: [BATCH], Parallel: [PARALLEL]" +
+        READ_OPTIONS, block -> traced(block, this::forEachDocumentCommand)));
+    this.forEachDocumentCommand.addArgument("FILTER", "{}");
+    this.forEachDocumentCommand.addArgument("SORT", "{}");
+    this.forEachDocumentCommand.addArgument("LIMIT", 0);
+    this.forEachDocumentCommand.addArgument("BATCH", 100);
+    this.forEachDocumentCommand.addArgument("PARALLEL", false);
+    ofReadPreference(this.forEachDocumentCommand);
+
+    this.aggregateCommand = ofDBC(blockReporter(37, "aggregate",
+      "Aggregate [PIPELINE] of [DBC] | Allow disk: [DISK], Batch size: [BATCH], Max time ms: [MAX_TIME]",
+      block -> traced(block, this::aggregateCommand)));
+    ofAggregate(this.aggregateCommand);
+
+    this.forEachAggregateCommand = ofDBC(blockHat(38, "forEachAggregate",
+      "For each result of [PIPELINE] of [DBC] | Allow disk: [DISK], Batch size: [BATCH], Max time ms: [MAX_TIME]",
+      block -> traced(block, this::forEachAggregateCommand)));
+    ofAggregate(this.forEachAggregateCommand);
+
+    this.downsampleCommand = ofDBC(blockReporter(39, "downsample",
+      "Downsample [FIELD] of [DBC] by [FUNC] | Last minutes: [FROM], Bucket minutes: [BUCKET], " +
+        "Time field: [TIME_FIELD], Filter: [FILTER]",
+      block -> traced(block, this::downsampleCommand)));
+    this.downsampleCommand.addArgument("FIELD", "value");
+    this.downsampleCommand.addArgument("FUNC", this.downsampleFunctionMenu);
+    this.downsampleCommand.addArgument("FROM", 1440);
+    this.downsampleCommand.addArgument("BUCKET", 15);
+    this.downsampleCommand.addArgument("TIME_FIELD", MongoStateHistorySink.TIME_FIELD);
+    this.downsampleCommand.addArgument("FILTER", "{}");
 
     this.deleteDocumentCommand = ofDBC(blockCommand(40, "deleteDoc",
-      "Delete [TYPE] docs by filter [FILTER] of [DBC]", this::deleteCommand));
+      "Delete [TYPE] docs by filter [FILTER] of [DBC] | Write concern: [WRITE_CONCERN]",
+      block -> traced(block, this::deleteCommand)));
     this.deleteDocumentCommand.addArgument("TYPE", this.typeMenu);
     this.deleteDocumentCommand.addArgument("FILTER", "{}");
+    this.deleteDocumentCommand.addArgument("WRITE_CONCERN", this.writeConcernMenu);
     this.deleteDocumentCommand.appendSpace();
 
     this.addKeyValue = blockCommand(50, "add_key_value", "Set ([KEY]/[VALUE])", workspaceBlock -> {
     });
 
     this.updateDocumentCommand = ofDBC(blockCommand(60, "updateDoc",
-      "Update [TYPE] doc by filter [FILTER]. Set [VALUE] of [DBC] | Upsert: [UPSERT]",
-      this::updateCommand));
+      "Update [TYPE] doc by filter [FILTER]. Set [VALUE] of [DBC] | Upsert: [UPSERT], Write concern: [WRITE_CONCERN]",
+      block -> traced(block, this::updateCommand)));
     this.updateDocumentCommand.addArgument(VALUE, "{test:1}");
     this.updateDocumentCommand.addArgument("TYPE", this.typeMenu);
     this.updateDocumentCommand.addArgument("FILTER", "{}");
     this.updateDocumentCommand.addArgument("UPSERT", false);
+    this.updateDocumentCommand.addArgument("WRITE_CONCERN", this.writeConcernMenu);
     this.updateDocumentCommand.appendSpace();
 
     this.createCollectionCommand = ofDB(blockCommand(100, "createColl",
-      "Create collection [COLL] of [DB]", this::createCollectionCommand));
+      "Create collection [COLL] of [DB] | Time field: [TIME_FIELD], Meta field: [META_FIELD], " +
+        "Granularity: [GRANULARITY], Expire after sec: [EXPIRE]",
+      block -> traced(block, this::createCollectionCommand)));
     this.createCollectionCommand.addArgument("COLL", "name");
+    this.createCollectionCommand.addArgument("TIME_FIELD", "");
+    this.createCollectionCommand.addArgument("META_FIELD", "");
+    this.createCollectionCommand.addArgument("GRANULARITY", this.granularityMenu);
+    this.createCollectionCommand.addArgument("EXPIRE", 0);
 
     this.dropCollectionCommand = ofDBC(blockCommand(110, "dropColl",
-      "Delete collection [DBC]", this::dropCollectionCommand));
+      "Delete collection [DBC]", block -> traced(block, this::dropCollectionCommand)));
 
     this.createIndexCommand = ofDBC(blockCommand(120, "createIndex",
-      "Create [SORT] index [NAME] [DBC] | Unique: [UNIQUE]", this::createIndexCommand));
+      "Create [SORT] index [NAME] [DBC] | Unique: [UNIQUE]", block -> traced(block, this::createIndexCommand)));
     this.createIndexCommand.addArgument("NAME", "stars, name");
     this.createIndexCommand.addArgument("SORT", this.sortMenu);
     this.createIndexCommand.addArgument("UNIQUE", false);
 
     this.dropIndexCommand = ofDBC(blockCommand(130, "dropIndex",
-      "Delete index [NAME] [DBC]", this::dropIndexCommand));
+      "Delete index [NAME] [DBC]", block -> traced(block, this::dropIndexCommand)));
     this.dropIndexCommand.addArgument("NAME", "name");
+
+    this.exportCommand = ofDBC(blockCommand(140, "exportColl",
+      "Export docs [FILTER] of [DBC] to file [FILE] | Format: [FORMAT], Compression: [COMPRESSION]",
+      block -> traced(block, this::exportCommand)));
+    this.exportCommand.addArgument("FILTER", "{}");
+    this.exportCommand.addArgument("FILE", "");
+    this.exportCommand.addArgument("FORMAT", this.exportFormatMenu);
+    this.exportCommand.addArgument("COMPRESSION", this.fileCompressionMenu);
+
+    this.importCommand = ofDBC(blockCommand(150, "importColl",
+      "Import file [FILE] into [DBC]", block -> traced(block, this::importCommand)));
+    this.importCommand.addArgument("FILE", "name.bson.zst");
   }
 
   public static Document bsonToDocument(BsonDocument bsonDocument) {
-    DocumentCodec codec = new DocumentCodec();
-    DecoderContext decoderContext = DecoderContext.builder().build();
-    return codec.decode(new BsonDocumentReader(bsonDocument), decoderContext);
+    if (bsonDocument instanceof RawBsonDocument rawBsonDocument) {
+      return rawBsonDocument.decode(DOCUMENT_CODEC);
+    }
+    return DOCUMENT_CODEC.decode(new BsonDocumentReader(bsonDocument), DECODER_CONTEXT);
   }
 
   private State readDocumentCommand(WorkspaceBlock workspaceBlock) {
-    MongoCollection<Document> collection = getCollection(workspaceBlock);
-    BsonDocument filter = BsonDocument.parse(workspaceBlock.getInputStringRequired("FILTER"));
-    FindIterable<Document> cursor = collection.find(filter).limit(1);
-    try (MongoCursor<Document> iterator = cursor.iterator()) {
-      return iterator.hasNext() ? docToJson(iterator.next()) : null;
-    }
+    CollectionHandle handle = getHandle(workspaceBlock);
+    BsonDocument filter = parseInput(workspaceBlock, "FILTER");
+    FindIterable<ObjectNode> cursor = forRead(workspaceBlock, handle, handle.jsonCollection()).find(filter).limit(1);
+    applyFindOptions(workspaceBlock, cursor, true);
+    recordShape(handle, "find", filter, null);
+    String key = "doc|" + filter.toJson() + "|" + normalize(workspaceBlock.getInputString("PROJECTION"));
+    return query(workspaceBlock, handle, key, filter, () -> {
+      try (MongoCursor<ObjectNode> iterator = cursor.iterator()) {
+        if (!iterator.hasNext()) {
+          return MongoQueryCache.Result.json(null, Set.of());
+        }
+        ObjectNode document = iterator.next();
+        JsonNode id = document.get("_id");
+        return MongoQueryCache.Result.json(document, id == null ? null : Set.of(id));
+      }
+    });
   }
 
-  @SneakyThrows
-  private State docToJson(Document document) {
-    return document == null ? null : new JsonType(OBJECT_MAPPER.readTree(document.toJson()));
+  /**
+   * Documents are read by entity's scan parallelism range cursors over _id, or over single ascending sort field in
+   * sort order. Next block is still handled on block's thread, one document at a time
+   */
+  private void forEachDocumentParallel(WorkspaceBlock workspaceBlock) {
+    workspaceBlock.handleNext(nextBlock -> {
+      CollectionHandle handle = getHandle(workspaceBlock);
+      BsonDocument filter = parseInput(workspaceBlock, "FILTER");
+      BsonDocument sort = getSort(workspaceBlock);
+      String field = "_id";
+      boolean ordered = sort != null && !sort.isEmpty();
+      if (ordered) {
+        BsonValue direction = sort.get(sort.getFirstKey());
+        if (sort.size() > 1 || !direction.isNumber() || direction.asNumber().intValue() < 0) {
+          throw new IllegalArgumentException("Parallel scan supports only single ascending sort field");
+        }
+        field = sort.getFirstKey();
+      }
+      int limit = workspaceBlock.getInputIntegerRequired("LIMIT");
+      try (MongoPartitionedScan<ObjectNode> scan = handle.service().partitionedScan(
+        forRead(workspaceBlock, handle, handle.jsonCollection()), filter, field, ordered)) {
+        workspaceBlock.onRelease(scan::close);
+        for (int count = 0; scan.hasNext() && (limit <= 0 || count < limit); count++) {
+          workspaceBlock.setValue(new JsonType(scan.next()));
+          nextBlock.handle();
+        }
+      }
+    });
+  }
+
+  private State docToJson(ObjectNode document) {
+    return document == null ? null : new JsonType(document);
   }
 
-  @SneakyThrows
   private State readDocumentsCommand(WorkspaceBlock workspaceBlock) {
-    MongoCollection<Document> collection = getCollection(workspaceBlock);
-    BsonDocument filter = BsonDocument.parse(workspaceBlock.getInputStringRequired("FILTER"));
-    FindIterable<Document> cursor = collection.find(filter);
+    CollectionHandle handle = getHandle(workspaceBlock);
+    BsonDocument filter = parseInput(workspaceBlock, "FILTER");
+    int limit = workspaceBlock.getInputIntegerRequired("LIMIT");
+    FindIterable<ObjectNode> cursor = findSorted(workspaceBlock);
+    cursor.limit(limit);
+    recordShape(handle, "find", filter, getSort(workspaceBlock));
+    applyFindOptions(workspaceBlock, cursor, true);
+    int batchSize = workspaceBlock.getInputIntegerRequired("BATCH_SIZE");
+    if (batchSize > 0) {
+      cursor.batchSize(batchSize);
+    }
 
-    String sortStr = workspaceBlock.getInputString("SORT");
-    if (StringUtils.hasLength(sortStr)) {
-      cursor.sort(BsonDocument.parse(sortStr));
+    String key = "docs|" + filter.toJson() + "|" + normalize(workspaceBlock.getInputString("SORT")) + "|" + limit
+                 + "|" + normalize(workspaceBlock.getInputString("PROJECTION"));
+    return query(workspaceBlock, handle, key, filter, () -> {
+      try (MongoCursor<ObjectNode> iterator = cursor.iterator()) {
+        ArrayNode arrayNode = OBJECT_MAPPER.createArrayNode();
+        Set<JsonNode> ids = new HashSet<>();
+        while (iterator.hasNext()) {
+          ObjectNode document = iterator.next();
+          arrayNode.add(document);
+          JsonNode id = document.get("_id");
+          if (ids != null && id != null) {
+            ids.add(id);
+          } else {
+            ids = null;
+          }
+        }
+        return MongoQueryCache.Result.json(arrayNode, ids);
+      }
+    });
+  }
+
+  /**
+   * Serve reporter from entity's query cache when it's enabled
+   *
+   * @param key query shape without collection name
+   */
+  private State query(WorkspaceBlock workspaceBlock, CollectionHandle handle, String key, BsonDocument filter,
+                      Callable<MongoQueryCache.Result> loader) {
+    MongoQueryCache cache = handle.service().getQueryCache();
+    if (cache == null) {
+      return evaluate(workspaceBlock, handle.service(), loader).value();
     }
-    cursor.limit(workspaceBlock.getInputIntegerRequired("LIMIT"));
+    return cache.get(handle.name(), key, filter, () -> evaluate(workspaceBlock, handle.service(), loader));
+  }
+
+  private String normalize(@Nullable String json) {
+    return StringUtils.hasText(json) ? templates.get(json).toJson() : "";
+  }
+
+  /**
+   * Run next blocks for every found document. Driver keeps only one batch in memory
+   */
+  private void forEachDocumentCommand(WorkspaceBlock workspaceBlock) {
+    if (workspaceBlock.getInputBoolean("PARALLEL")) {
+      forEachDocumentParallel(workspaceBlock);
+      return;
+    }
+    workspaceBlock.handleNext(nextBlock -> {
+      FindIterable<ObjectNode> cursor = findSorted(workspaceBlock);
+      cursor.limit(workspaceBlock.getInputIntegerRequired("LIMIT"));
+      cursor.batchSize(Math.max(1, workspaceBlock.getInputIntegerRequired("BATCH")));
+
+      try (MongoCursor<ObjectNode> iterator = cursor.iterator()) {
+        workspaceBlock.onRelease(iterator::close);
+        while (iterator.hasNext()) {
+          workspaceBlock.setValue(new JsonType(iterator.next()));
+          nextBlock.handle();
+        }
+      }
+    });
+  }
 
-    try (MongoCursor<Document> iterator = cursor.iterator()) {
+  /**
+   * Single result with single field besides _id, e.g. {_id: null, avg: 21.5}, is returned as DecimalType
+   */
+  private State aggregateCommand(WorkspaceBlock workspaceBlock) {
+    CollectionHandle handle = getHandle(workspaceBlock);
+    AggregateIterable<ObjectNode> cursor = aggregate(workspaceBlock, handle);
+    return evaluate(workspaceBlock, handle.service(), () -> {
+      try (MongoCursor<ObjectNode> iterator = cursor.iterator()) {
+        ArrayNode arrayNode = OBJECT_MAPPER.createArrayNode();
+        while (iterator.hasNext()) {
+          arrayNode.add(iterator.next());
+        }
+        if (arrayNode.size() == 1) {
+          BigDecimal scalar = getScalar((ObjectNode) arrayNode.get(0));
+          if (scalar != null) {
+            return new DecimalType(scalar);
+          }
+        }
+        return new JsonType(arrayNode);
+      }
+    });
+  }
+
+  private void forEachAggregateCommand(WorkspaceBlock workspaceBlock) {
+    workspaceBlock.handleNext(nextBlock -> {
+      try (MongoCursor<ObjectNode> iterator = aggregate(workspaceBlock, getHandle(workspaceBlock)).iterator()) {
+        workspaceBlock.onRelease(iterator::close);
+        while (iterator.hasNext()) {
+          workspaceBlock.setValue(new JsonType(iterator.next()));
+          nextBlock.handle();
+        }
+      }
+    });
+  }
+
+  /**
+   * Group documents of last FROM minutes into BUCKET minute buckets using $dateTrunc (MongoDB 5.0+).
+   * Returns [{ts: bucket start, value: aggregated}] sorted by time
+   */
+  private State downsampleCommand(WorkspaceBlock workspaceBlock) {
+    CollectionHandle handle = getHandle(workspaceBlock);
+    String field = workspaceBlock.getInputStringRequired("FIELD");
+    String timeField = workspaceBlock.getInputStringRequired("TIME_FIELD");
+    DownsampleFunction function = workspaceBlock.getMenuValue("FUNC", this.downsampleFunctionMenu);
+    long from = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(workspaceBlock.getInputIntegerRequired("FROM"));
+    int bucket = Math.max(1, workspaceBlock.getInputIntegerRequired("BUCKET"));
+    String jsonFilter = workspaceBlock.getInputString("FILTER");
+
+    BsonDocument match = new BsonDocument();
+    if (!isEmpty(jsonFilter)) {
+      // cached filter is immutable
+      match.putAll(templates.get(jsonFilter));
+    }
+    match.append(timeField, new BsonDocument("$gte", new BsonDateTime(from)));
+    BsonDocument bucketId = new BsonDocument("$dateTrunc", new BsonDocument("date", new BsonString("$" + timeField))
+      .append("unit", new BsonString("minute"))
+      .append("binSize", new BsonInt32(bucket)));
+    List<BsonDocument> pipeline = List.of(
+      new BsonDocument("$match", match),
+      new BsonDocument("$group", new BsonDocument("_id", bucketId)
+        .append("value", new BsonDocument(function.operator, function == DownsampleFunction.Count
+          ? new BsonInt32(1) : new BsonString("$" + field)))),
+      new BsonDocument("$sort", new BsonDocument("_id", new BsonInt32(1))),
+      new BsonDocument("$project", new BsonDocument("_id", new BsonInt32(0))
+        .append(timeField, new BsonString("$_id"))
+        .append("value", new BsonInt32(1))));
+
+    AggregateIterable<ObjectNode> cursor = handle.jsonCollection().aggregate(pipeline);
+    return evaluate(workspaceBlock, handle.service(), () -> {
       ArrayNode arrayNode = OBJECT_MAPPER.createArrayNode();
-      while (iterator.hasNext()) {
-        Document document = iterator.next();
-        arrayNode.add(OBJECT_MAPPER.readTree(document.toJson()));
+      try (MongoCursor<ObjectNode> iterator = cursor.iterator()) {
+        while (iterator.hasNext()) {
+          arrayNode.add(iterator.next());
+        }
       }
       return new JsonType(arrayNode);
+    });
+  }
+
+  private AggregateIterable<ObjectNode> aggregate(WorkspaceBlock workspaceBlock, CollectionHandle handle) {
+    // pipeline is wrapped into document to reuse template cache for both constant and templated pipelines
+    String raw = "{pipeline: " + workspaceBlock.getInputStringRequired("PIPELINE") + "}";
+    BsonValue pipeline = templates.render(raw,
+      () -> "{pipeline: " + workspaceBlock.getInputStringRequiredWithContext("PIPELINE") + "}").get("pipeline");
+    List<BsonDocument> stages = new ArrayList<>();
+    if (pipeline.isDocument()) {
+      stages.add(pipeline.asDocument());
+    } else if (pipeline.isArray()) {
+      for (BsonValue stage : pipeline.asArray()) {
+        if (!stage.isDocument()) {
+          throw new IllegalArgumentException("Aggregation stage must be a document: " + stage);
+        }
+        stages.add(stage.asDocument());
+      }
+    } else {
+      throw new IllegalArgumentException("Aggregation pipeline must be an array of stages");
+    }
+
+    AggregateIterable<ObjectNode> cursor = handle.jsonCollection().aggregate(stages)
+      .allowDiskUse(workspaceBlock.getInputBoolean("DISK"));
+    int batchSize = workspaceBlock.getInputIntegerRequired("BATCH");
+    if (batchSize > 0) {
+      cursor.batchSize(batchSize);
+    }
+    int maxTime = workspaceBlock.getInputIntegerRequired("MAX_TIME");
+    if (maxTime > 0) {
+      cursor.maxTime(maxTime, TimeUnit.MILLISECONDS);
+    }
+    return cursor;
+  }
+
+  private static @Nullable BigDecimal getScalar(ObjectNode document) {
+    JsonNode value = null;
+    for (Iterator<Map.Entry<String, JsonNode>> fields = document.fields(); fields.hasNext(); ) {
+      Map.Entry<String, JsonNode> field = fields.next();
+      if (!field.getKey().equals("_id")) {
+        if (value != null) {
+          return null;
+        }
+        value = field.getValue();
+      }
+    }
+    if (value == null) {
+      return null;
+    }
+    if (value.isNumber()) {
+      return value.decimalValue();
+    }
+    // Extended decimal mode of JsonNodeCodec
+    JsonNode decimal = value.get("$numberDecimal");
+    return decimal != null && decimal.isTextual() ? new BigDecimal(decimal.asText()) : null;
+  }
+
+  /**
+   * Projection {FIELD: 1, _id: 0} lets server answer from covered index when filter, sort and field are indexed
+   */
+  private State readFieldCommand(WorkspaceBlock workspaceBlock) {
+    CollectionHandle handle = getHandle(workspaceBlock);
+    String field = workspaceBlock.getInputStringRequired("FIELD");
+    BsonDocument filter = parseInput(workspaceBlock, "FILTER");
+    BsonDocument projection = new BsonDocument(field, new BsonInt32(1));
+    if (!field.equals("_id") && !field.startsWith("_id.")) {
+      projection.append("_id", new BsonInt32(0));
+    }
+    FindIterable<BsonDocument> cursor = forRead(workspaceBlock, handle, handle.collection())
+      .find(filter, BsonDocument.class)
+      .projection(projection).limit(1);
+    BsonDocument sort = getSort(workspaceBlock);
+    if (sort != null) {
+      cursor.sort(sort);
+    }
+    applyFindOptions(workspaceBlock, cursor, false);
+    recordShape(handle, "find", filter, sort);
+    String[] path = field.split("\\.");
+    JsonNodeCodec codec = handle.service().getJsonCodec();
+
+    return evaluate(workspaceBlock, handle.service(), () -> {
+      BsonDocument document = cursor.first();
+      BsonValue value = document;
+      for (int i = 0; value != null && i < path.length; i++) {
+        value = value.isDocument() ? value.asDocument().get(path[i]) : null;
+      }
+      return toState(value, codec);
+    });
+  }
+
+  private static @Nullable State toState(@Nullable BsonValue value, JsonNodeCodec codec) {
+    if (value == null || value.isNull()) {
+      return null;
+    }
+    return switch (value.getBsonType()) {
+      case INT32, INT64 -> new DecimalType(value.asNumber().longValue());
+      case DOUBLE -> Double.isFinite(value.asDouble().getValue())
+        ? new DecimalType(BigDecimal.valueOf(value.asDouble().getValue())) : null;
+      case DECIMAL128 -> new DecimalType(value.asDecimal128().getValue().bigDecimalValue());
+      case STRING -> new StringType(value.asString().getValue());
+      case BOOLEAN -> OnOffType.of(value.asBoolean().getValue());
+      case DATE_TIME -> new DecimalType(value.asDateTime().getValue());
+      case OBJECT_ID -> new StringType(value.asObjectId().getValue().toHexString());
+      case DOCUMENT -> new JsonType(codec.decode(value.asDocument()));
+      default -> new JsonType(codec.decode(new BsonDocument("v", value)).get("v"));
+    };
+  }
+
+  /**
+   * Optional PROJECTION, HINT and MAX_TIME arguments. HINT is index name or index key document
+   */
+  private <T> void applyFindOptions(WorkspaceBlock workspaceBlock, FindIterable<T> cursor, boolean withProjection) {
+    if (withProjection) {
+      String projection = workspaceBlock.getInputString("PROJECTION");
+      if (StringUtils.hasText(projection)) {
+        cursor.projection(templates.get(projection));
+      }
+    }
+    String hint = workspaceBlock.getInputString("HINT");
+    if (StringUtils.hasText(hint)) {
+      if (hint.trim().startsWith("{")) {
+        cursor.hint(templates.get(hint));
+      } else {
+        cursor.hintString(hint.trim());
+      }
+    }
+    int maxTime = workspaceBlock.getInputIntegerRequired("MAX_TIME");
+    if (maxTime > 0) {
+      cursor.maxTime(maxTime, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private FindIterable<ObjectNode> findSorted(WorkspaceBlock workspaceBlock) {
+    CollectionHandle handle = getHandle(workspaceBlock);
+    MongoCollection<ObjectNode> collection = forRead(workspaceBlock, handle, handle.jsonCollection());
+    BsonDocument filter = parseInput(workspaceBlock, "FILTER");
+    FindIterable<ObjectNode> cursor = collection.find(filter);
+
+    BsonDocument sort = getSort(workspaceBlock);
+    if (sort != null) {
+      cursor.sort(sort);
+    }
+    return cursor;
+  }
+
+  private @Nullable BsonDocument getSort(WorkspaceBlock workspaceBlock) {
+    String sortStr = workspaceBlock.getInputString("SORT");
+    return StringUtils.hasLength(sortStr) ? templates.get(sortStr) : null;
+  }
+
+  private static void recordShape(CollectionHandle handle, String operation, BsonDocument filter,
+                                  @Nullable BsonDocument sort) {
+    MongoQueryShapeRecorder recorder = handle.service().getShapeRecorder();
+    if (recorder != null) {
+      recorder.record(handle.name(), operation, filter, sort);
     }
   }
 
   private void createIndexCommand(WorkspaceBlock workspaceBlock) {
-    MongoCollection<Document> collection = getCollection(workspaceBlock);
+    CollectionHandle handle = getHandle(workspaceBlock);
     String name = workspaceBlock.getInputStringRequired("NAME");
     List<String> indexes =
       Stream.of(name.split(",")).map(String::trim).filter(i -> !i.isEmpty()).collect(Collectors.toList());
     IndexOptions indexOptions = new IndexOptions().unique(workspaceBlock.getInputBoolean("UNIQUE"));
+    Bson keys = workspaceBlock.getMenuValue("SORT", this.sortMenu) == SortEnum.Asc
+      ? Indexes.ascending(indexes) : Indexes.descending(indexes);
 
-    if (workspaceBlock.getMenuValue("SORT", this.sortMenu) == SortEnum.Asc) {
-      collection.createIndex(Indexes.ascending(indexes), indexOptions);
-    } else {
-      collection.createIndex(Indexes.descending(indexes), indexOptions);
-    }
+    execute(workspaceBlock, handle.service(), () -> handle.collection().createIndex(keys, indexOptions));
   }
 
   private void dropIndexCommand(WorkspaceBlock workspaceBlock) {
-    MongoCollection<Document> collection = getCollection(workspaceBlock);
-    collection.dropIndex(workspaceBlock.getInputStringRequired("NAME"));
+    CollectionHandle handle = getHandle(workspaceBlock);
+    String name = workspaceBlock.getInputStringRequired("NAME");
+    execute(workspaceBlock, handle.service(), () -> handle.collection().dropIndex(name));
   }
 
+  /**
+   * Empty filter without hint is answered from collection metadata by estimatedDocumentCount instead of scanning.
+   * Materialized filter is answered from memory, see {@link MongoMaterializedCounts}
+   */
   private State countCommand(WorkspaceBlock workspaceBlock) {
-    MongoCollection<Document> collection = getCollection(workspaceBlock);
-    BsonDocument filter = BsonDocument.parse(workspaceBlock.getInputStringRequired("FILTER"));
-    return new DecimalType(collection.countDocuments(filter));
+    CollectionHandle handle = getHandle(workspaceBlock);
+    BsonDocument filter = parseInput(workspaceBlock, "FILTER");
+    if (workspaceBlock.getInputBoolean("MATERIALIZE") && !filter.isEmpty()) {
+      MongoMaterializedCounts.Counter counter = evaluate(workspaceBlock, handle.service(), () ->
+        handle.service().getMaterializedCounts().acquire(handle.name(), filter, workspaceBlock.getId(),
+          release -> workspaceBlock.onRelease(release::run)));
+      if (counter != null) {
+        return new DecimalType(counter.get());
+      }
+    }
+    String hint = workspaceBlock.getInputString("HINT");
+    int maxTime = workspaceBlock.getInputIntegerRequired("MAX_TIME");
+
+    if (filter.isEmpty() && !StringUtils.hasText(hint)) {
+      EstimatedDocumentCountOptions options = new EstimatedDocumentCountOptions();
+      if (maxTime > 0) {
+        options.maxTime(maxTime, TimeUnit.MILLISECONDS);
+      }
+      return query(workspaceBlock, handle, "count|{}", filter, () -> new MongoQueryCache.Result(
+        new DecimalType(forRead(workspaceBlock, handle, handle.collection()).estimatedDocumentCount(options)), null));
+    }
+    CountOptions options = new CountOptions();
+    if (StringUtils.hasText(hint)) {
+      if (hint.trim().startsWith("{")) {
+        options.hint(templates.get(hint));
+      } else {
+        options.hintString(hint.trim());
+      }
+    }
+    if (maxTime > 0) {
+      options.maxTime(maxTime, TimeUnit.MILLISECONDS);
+    }
+    recordShape(handle, "count", filter, null);
+    return query(workspaceBlock, handle, "count|" + filter.toJson(), filter, () -> new MongoQueryCache.Result(
+      new DecimalType(forRead(workspaceBlock, handle, handle.collection()).countDocuments(filter, options)), null));
   }
 
   private void deleteCommand(WorkspaceBlock workspaceBlock) {
-    MongoCollection<Document> collection = getCollection(workspaceBlock);
-
-    BsonDocument filter = BsonDocument.parse(workspaceBlock.getInputStringRequired("FILTER"));
+    BsonDocument filter = parseInput(workspaceBlock, "FILTER");
     TypeEnum type = workspaceBlock.getMenuValue("TYPE", this.typeMenu);
+    CollectionHandle handle = getHandle(workspaceBlock);
+    recordShape(handle, "delete", filter, null);
 
-    if (type == TypeEnum.Many) {
-      collection.deleteMany(filter);
-    } else {
-      collection.deleteOne(filter);
+    MongoWriteBuffer writeBuffer = getWriteBuffer(workspaceBlock, handle);
+    if (writeBuffer != null) {
+      writeBuffer.add(type == TypeEnum.Many ? new DeleteManyModel<>(filter) : new DeleteOneModel<>(filter));
+      return;
     }
+    MongoCollection<Document> collection = forWrite(workspaceBlock, handle);
+    write(workspaceBlock, handle, () -> {
+      if (type == TypeEnum.Many) {
+        collection.deleteMany(filter);
+      } else {
+        collection.deleteOne(filter);
+      }
+    });
   }
 
   private void createCollectionCommand(WorkspaceBlock workspaceBlock) {
     MongoDBEntity entity = workspaceBlock.getMenuValueEntityRequired("DB", this.mongoDbMenu);
-    entity.getService().getMongoDatabase()
-      .createCollection(workspaceBlock.getInputStringRequired("COLL"));
+    String collection = workspaceBlock.getInputStringRequired("COLL");
+    // time-series collection if time field is set
+    String timeField = workspaceBlock.getInputString("TIME_FIELD");
+    String metaField = workspaceBlock.getInputString("META_FIELD");
+    TimeSeriesGranularity granularity = workspaceBlock.getMenuValue("GRANULARITY", this.granularityMenu);
+    int expireAfter = workspaceBlock.getInputIntegerRequired("EXPIRE");
+    MongoDBService service = entity.getService();
+    service.checkAvailable();
+    execute(workspaceBlock, service, () -> {
+      if (StringUtils.hasLength(timeField)) {
+        MongoStateHistorySink.createTimeSeriesCollection(service.getMongoDatabase(), collection, timeField,
+          metaField, granularity, expireAfter);
+      } else {
+        service.getMongoDatabase().createCollection(collection);
+      }
+      service.getCollectionCatalog().added(collection);
+    });
+  }
+
+  /**
+   * Empty file name is replaced by 'collection.format.compression' inside entity's export directory
+   */
+  private void exportCommand(WorkspaceBlock workspaceBlock) {
+    CollectionHandle handle = getHandle(workspaceBlock);
+    BsonDocument filter = parseInput(workspaceBlock, "FILTER");
+    MongoCollectionTransfer.Format format = workspaceBlock.getMenuValue("FORMAT", this.exportFormatMenu);
+    MongoCollectionTransfer.FileCompression compression =
+      workspaceBlock.getMenuValue("COMPRESSION", this.fileCompressionMenu);
+    String fileName = workspaceBlock.getInputString("FILE");
+    Path file = Path.of(handle.service().getEntity().getExportDirectory()).toAbsolutePath().resolve(
+      StringUtils.hasText(fileName) ? fileName : MongoCollectionTransfer.fileName(handle.name(), format, compression));
+    long count = evaluate(workspaceBlock, handle.service(), () -> MongoCollectionTransfer.export(
+      handle.service().getMongoDatabase(), handle.name(), filter, file, format, compression, exported -> {
+      }));
+    log.info("Exported {} documents of '{}' to {}", count, handle.name(), file);
+  }
+
+  private void importCommand(WorkspaceBlock workspaceBlock) {
+    CollectionHandle handle = getHandle(workspaceBlock);
+    Path file = Path.of(handle.service().getEntity().getExportDirectory()).toAbsolutePath()
+      .resolve(workspaceBlock.getInputStringRequired("FILE"));
+    if (!Files.isRegularFile(file)) {
+      throw new IllegalArgumentException("File " + file + " not exists");
+    }
+    long count;
+    try {
+      count = evaluate(workspaceBlock, handle.service(), () -> MongoCollectionTransfer.importFile(
+        handle.service().getMongoDatabase(), handle.name(), file, imported -> {
+        }));
+    } finally {
+      evictCached(handle);
+    }
+    log.info("Imported {} documents from {} into '{}'", count, file, handle.name());
   }
 
   private void dropCollectionCommand(WorkspaceBlock workspaceBlock) {
-    getCollection(workspaceBlock).drop();
+    CollectionHandle handle = getHandle(workspaceBlock);
+    String key = workspaceBlock.getMenuValue("DBC", this.mongoDbAndColMenu);
+    write(workspaceBlock, handle, () -> {
+      handle.collection().drop();
+      collectionHandles.remove(key);
+      handle.service().getCollectionCatalog().removed(handle.name());
+    });
   }
 
   private Scratch3Block ofDBC(Scratch3Block scratch3Block) {
@@ -237,6 +833,46 @@ public class Scratch3MongoDBBlocks extends Scratch3ExtensionBlocks {
     return scratch3Block;
   }
 
+  private void ofAggregate(Scratch3Block scratch3Block) {
+    scratch3Block.addArgument("PIPELINE", "[{$group: {_id: null, avg: {$avg: '$value'}}}]");
+    scratch3Block.addArgument("DISK", false);
+    scratch3Block.addArgument("BATCH", 100);
+    scratch3Block.addArgument("MAX_TIME", 0);
+  }
+
+  private void ofReadPreference(Scratch3Block scratch3Block) {
+    scratch3Block.addArgument("READ_PREF", this.readPreferenceMenu);
+    scratch3Block.addArgument("MAX_STALENESS", 0);
+  }
+
+  /**
+   * Collection with block's read preference. Max staleness is ignored for primary, server requires at least 90 sec
+   */
+  private <T> MongoCollection<T> forRead(WorkspaceBlock workspaceBlock, CollectionHandle handle,
+                                         MongoCollection<T> collection) {
+    ReadPreferenceOption option = workspaceBlock.getMenuValue("READ_PREF", this.readPreferenceMenu);
+    if (option == ReadPreferenceOption.Default) {
+      return collection;
+    }
+    int maxStaleness = option == ReadPreferenceOption.Primary ? 0
+      : workspaceBlock.getInputIntegerRequired("MAX_STALENESS");
+    return handle.variant(collection, option.name() + "|" + maxStaleness, base -> base.withReadPreference(
+      maxStaleness > 0
+        ? ReadPreference.valueOf(option.mode, List.of(), maxStaleness, TimeUnit.SECONDS)
+        : ReadPreference.valueOf(option.mode)));
+  }
+
+  /**
+   * Collection with block's write concern
+   */
+  private MongoCollection<Document> forWrite(WorkspaceBlock workspaceBlock, CollectionHandle handle) {
+    WriteConcernOption option = workspaceBlock.getMenuValue("WRITE_CONCERN", this.writeConcernMenu);
+    if (option == WriteConcernOption.Default) {
+      return handle.collection();
+    }
+    return handle.variant(handle.collection(), option.name(), base -> base.withWriteConcern(option.writeConcern));
+  }
+
   private Scratch3Block ofDB(Scratch3Block scratch3Block) {
     scratch3Block.addArgument("DB", this.mongoDbMenu);
     return scratch3Block;
@@ -244,81 +880,260 @@ public class Scratch3MongoDBBlocks extends Scratch3ExtensionBlocks {
 
   private void watchCommand(WorkspaceBlock workspaceBlock) {
     workspaceBlock.handleNext(nextBlock -> {
-      MongoCollection<Document> collection = getCollection(workspaceBlock);
+      CollectionHandle handle = getHandle(workspaceBlock);
 
       List<ExtendedOperationType> operationTypeExtFilters = workspaceBlock.getMenuValues("OT",
         this.operationTypeMenu, ExtendedOperationType.class);
-      Bson operationTypeFilter = null;
+      Set<String> operationTypes = null;
       if (!operationTypeExtFilters.contains(ExtendedOperationType.ANY)) {
-        operationTypeFilter = Filters.in("operationType",
-          operationTypeExtFilters.stream().map(e -> OperationType.valueOf(e.name())).collect(Collectors.toList()));
+        operationTypes = operationTypeExtFilters.stream()
+          .map(e -> OperationType.valueOf(e.name()).getValue()).collect(Collectors.toSet());
       }
 
-      Bson pipeline = buildWatchPipeline(operationTypeFilter, workspaceBlock.getInputStringRequired("FILTER"));
+      String jsonFilter = workspaceBlock.getInputString("FILTER");
+      BsonDocument filter = isEmpty(jsonFilter) ? new BsonDocument() : templates.get(jsonFilter);
+      JsonNodeCodec codec = handle.service().getJsonCodec();
+      FullDocument fullDocument = workspaceBlock.getMenuValue("FD", this.fullDocumentMenu);
+      // resume after restart from last handled event of this block
+      String checkpointKey = workspaceBlock.getInputBoolean("RESUME") ? workspaceBlock.getId() : null;
 
-      ChangeStreamIterable<Document> watchStream = collection.watch(singletonList(pipeline));
-      // watchStream
-      try {
-        try (MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = watchStream.cursor()) {
-          workspaceBlock.onRelease(cursor::close);
+      MongoChangeStreamDispatcher.Subscription subscription = handle.service().watch(handle.name(),
+        operationTypes, filter, fullDocument, checkpointKey, event -> {
+          BsonValue changed = event.get("fullDocument");
+          workspaceBlock.setValue(changed != null && changed.isDocument()
+            ? docToJson(codec.decode(changed.asDocument())) : null);
+          nextBlock.handle();
+        },
+        // dispatcher fails subscribers with descriptive message, e.g. missing replica set or lost resume point
+        ex -> workspaceBlock.logError("Watch of '{}' stopped: {}", handle.name(), ex.getMessage()));
+      workspaceBlock.onRelease(subscription::close);
+    });
+  }
 
-          while (cursor.hasNext()) {
-            ChangeStreamDocument<Document> next = cursor.next();
-            workspaceBlock.setValue(docToJson(next.getFullDocument()));
-            nextBlock.handle();
-          }
-        }
-      } catch (MongoCommandException ex) {
-        if (ex.getCode() == 40573) {
-          workspaceBlock.logErrorAndThrow("Unable to watch pipeline stream without replica set");
-        }
-        workspaceBlock.logErrorAndThrow("Unexpected error while watch pipeline: " + getErrorMessage(ex));
+  private void createCommand(WorkspaceBlock workspaceBlock) {
+    BsonDocument updateDoc = templates.render(workspaceBlock.getInputStringRequired("VALUE"),
+      () -> workspaceBlock.getInputStringRequiredWithContext("VALUE"));
+    Document document = bsonToDocument(updateDoc);
+
+    CollectionHandle handle = getHandle(workspaceBlock);
+    MongoWriteBuffer writeBuffer = getWriteBuffer(workspaceBlock, handle);
+    if (writeBuffer != null) {
+      writeBuffer.add(new InsertOneModel<>(document));
+    } else {
+      MongoCollection<Document> collection = forWrite(workspaceBlock, handle);
+      write(workspaceBlock, handle, () -> collection.insertOne(document));
+    }
+  }
+
+  private void updateCommand(WorkspaceBlock workspaceBlock) {
+    BsonDocument filter = parseInput(workspaceBlock, "FILTER");
+    BsonDocument set = parseInput(workspaceBlock, "VALUE");
+    TypeEnum type = workspaceBlock.getMenuValue("TYPE", this.typeMenu);
+
+    // Document set = new Document().append("$set", updateDoc);
+    UpdateOptions updateOptions = new UpdateOptions().upsert(workspaceBlock.getInputBoolean("UPSERT"));
+    CollectionHandle handle = getHandle(workspaceBlock);
+    recordShape(handle, "update", filter, null);
+    MongoWriteBuffer writeBuffer = getWriteBuffer(workspaceBlock, handle);
+    if (writeBuffer != null) {
+      writeBuffer.add(type == TypeEnum.Many
+        ? new UpdateManyModel<>(filter, set, updateOptions)
+        : new UpdateOneModel<>(filter, set, updateOptions));
+      return;
+    }
+    MongoCollection<Document> collection = forWrite(workspaceBlock, handle);
+    write(workspaceBlock, handle, () -> {
+      if (type == TypeEnum.Many) {
+        collection.updateMany(filter, set, updateOptions);
+      } else {
+        collection.updateOne(filter, set, updateOptions);
       }
     });
   }
 
-  private Bson buildWatchPipeline(Bson operationTypeFilter, String jsonFilter) {
-    if (isEmpty(jsonFilter) && operationTypeFilter == null) {
-      return null;
+  private BsonDocument parseInput(WorkspaceBlock workspaceBlock, String key) {
+    return templates.get(workspaceBlock.getInputStringRequired(key));
+  }
+
+  /**
+   * Run write with {@link #execute(WorkspaceBlock, MongoDBService, Runnable)} and evict cached queries of collection
+   * right after it, so following read of same rule doesn't wait for change stream to deliver the write
+   */
+  private void write(WorkspaceBlock workspaceBlock, CollectionHandle handle, Runnable operation) {
+    execute(workspaceBlock, handle.service(), () -> {
+      try {
+        operation.run();
+      } finally {
+        evictCached(handle);
+      }
+    });
+  }
+
+  private static void evictCached(CollectionHandle handle) {
+    MongoQueryCache cache = handle.service().getQueryCache();
+    if (cache != null) {
+      cache.evict(handle.name());
     }
+  }
 
-    if (isEmpty(jsonFilter)) {
-      return Aggregates.match(operationTypeFilter);
+  /**
+   * Run command on caller thread, or in async mode on service's virtual thread without waiting for result. Errors of
+   * async commands are reported to block log
+   */
+  private void execute(WorkspaceBlock workspaceBlock, MongoDBService service, Runnable operation) {
+    if (!service.getEntity().isAsyncMode()) {
+      operation.run();
+      return;
     }
+    submit(workspaceBlock, service, () -> {
+      try {
+        operation.run();
+      } catch (Exception ex) {
+        if (!(ex instanceof MongoInterruptedException) && !Thread.currentThread().isInterrupted()) {
+          workspaceBlock.logError("MongoDB operation failed: {}", getErrorMessage(ex));
+        }
+      }
+      return null;
+    });
+  }
 
-    if (operationTypeFilter == null) {
-      return Aggregates.match(Document.parse(jsonFilter));
+  /**
+   * Evaluate reporter on caller thread, or in async mode on service's virtual thread bounded by entity's async timeout
+   */
+  private <T> T evaluate(WorkspaceBlock workspaceBlock, MongoDBService service, Callable<T> operation) {
+    if (!service.getEntity().isAsyncMode()) {
+      try {
+        return operation.call();
+      } catch (RuntimeException ex) {
+        throw ex;
+      } catch (Exception ex) {
+        throw new IllegalStateException(ex);
+      }
     }
+    Future<T> future = submit(workspaceBlock, service, operation);
+    try {
+      return future.get();
+    } catch (CancellationException ex) {
+      throw new IllegalStateException("MongoDB operation timed out after " +
+        service.getEntity().getAsyncTimeout() + "ms or was cancelled");
+    } catch (InterruptedException ex) {
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for MongoDB operation");
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof RuntimeException runtimeException) {
+        throw runtimeException;
+      }
+      throw new IllegalStateException(ex.getCause());
+    }
+  }
 
-    return Aggregates.match(Filters.and(Document.parse(jsonFilter), operationTypeFilter));
+  /**
+   * Submit operation that is cancelled after entity's async timeout or when block is released
+   */
+  private <T> Future<T> submit(WorkspaceBlock workspaceBlock, MongoDBService service, Callable<T> operation) {
+    CompletableFuture<ScheduledFuture<?>> timer = new CompletableFuture<>();
+    Future<T> future = service.submit(() -> {
+      try {
+        return operation.call();
+      } finally {
+        timer.thenAccept(scheduled -> scheduled.cancel(false));
+      }
+    });
+    timer.complete(TIMEOUTS.schedule(() -> future.cancel(true), service.getEntity().getAsyncTimeout(),
+      TimeUnit.MILLISECONDS));
+
+    Set<Future<?>> pending = inFlight.computeIfAbsent(workspaceBlock.getId(), id -> {
+      workspaceBlock.onRelease(() -> {
+        Set<Future<?>> released = inFlight.remove(id);
+        if (released != null) {
+          released.forEach(f -> f.cancel(true));
+        }
+      });
+      return ConcurrentHashMap.newKeySet();
+    });
+    pending.removeIf(Future::isDone);
+    pending.add(future);
+    return future;
   }
 
-  private void createCommand(WorkspaceBlock workspaceBlock) {
-    MongoCollection<Document> collection = getCollection(workspaceBlock);
-    BsonDocument updateDoc = BsonDocument.parse(workspaceBlock.getInputStringRequiredWithContext("VALUE"));
-    collection.insertOne(bsonToDocument(updateDoc));
+  /**
+   * @return write-behind buffer of collection or null if block writes synchronously. Block with own write concern
+   * writes synchronously after pending buffered writes are flushed, so concern is honored and order is kept
+   */
+  private @Nullable MongoWriteBuffer getWriteBuffer(WorkspaceBlock workspaceBlock, CollectionHandle handle) {
+    MongoWriteBuffer writeBuffer = handle.service().getWriteBuffer(handle.name());
+    if (writeBuffer != null
+      && workspaceBlock.getMenuValue("WRITE_CONCERN", this.writeConcernMenu) != WriteConcernOption.Default) {
+      writeBuffer.flush();
+      return null;
+    }
+    return writeBuffer;
   }
 
-  private void updateCommand(WorkspaceBlock workspaceBlock) {
-    MongoCollection<Document> collection = getCollection(workspaceBlock);
+  /**
+   * Attribute MongoDB commands issued by block handler to the block. Previous origin is restored afterward, so
+   * workspace threads reused by other blocks or nested blocks of hats do not inherit it
+   */
+  private <T> T traced(WorkspaceBlock workspaceBlock, Function<WorkspaceBlock, T> handler) {
+    String previous = MongoCommandStats.getOrigin();
+    MongoCommandStats.setOrigin(workspaceBlock.getId());
+    try {
+      return handler.apply(workspaceBlock);
+    } finally {
+      MongoCommandStats.setOrigin(previous);
+    }
+  }
 
-    BsonDocument filter = BsonDocument.parse(workspaceBlock.getInputStringRequired("FILTER"));
-    BsonDocument set = BsonDocument.parse(workspaceBlock.getInputStringRequired("VALUE"));
-    TypeEnum type = workspaceBlock.getMenuValue("TYPE", this.typeMenu);
+  private void traced(WorkspaceBlock workspaceBlock, Consumer<WorkspaceBlock> handler) {
+    traced(workspaceBlock, block -> {
+      handler.accept(block);
+      return null;
+    });
+  }
 
-    // Document set = new Document().append("$set", updateDoc);
-    UpdateOptions updateOptions = new UpdateOptions().upsert(workspaceBlock.getInputBoolean("UPSERT"));
-    if (type == TypeEnum.Many) {
-      collection.updateMany(filter, set, updateOptions);
-    } else {
-      collection.updateOne(filter, set, updateOptions);
+  /**
+   * Resolve 'entityID/collection' menu value. Handles are reused until owning service is restarted or collection
+   * dropped, so hot blocks skip entity lookup
+   */
+  private CollectionHandle getHandle(WorkspaceBlock workspaceBlock) {
+    String key = workspaceBlock.getMenuValue("DBC", this.mongoDbAndColMenu);
+    CollectionHandle handle = collectionHandles.get(key);
+    if (handle == null || !handle.isValid()) {
+      String[] entityWithColl = key.split("/");
+      MongoDBEntity entity = context.db().get(entityWithColl[0]);
+      if (entity == null) {
+        collectionHandles.remove(key);
+        throw new IllegalArgumentException("Unable to find MongoDB entity: " + entityWithColl[0]);
+      }
+      MongoDBService service = entity.getService();
+      MongoCollection<Document> collection = service.getMongoDatabase().getCollection(entityWithColl[1]);
+      handle = new CollectionHandle(service, service.getGeneration(), entityWithColl[1], collection,
+        service.getJsonCodec().wrap(collection), new ConcurrentHashMap<>());
+      collectionHandles.put(key, handle);
     }
+    handle.service().checkAvailable();
+    return handle;
   }
 
-  private MongoCollection<Document> getCollection(WorkspaceBlock workspaceBlock) {
-    String[] entityWithColl = workspaceBlock.getMenuValue("DBC", this.mongoDbAndColMenu).split("/");
-    MongoDBEntity entity = context.db().get(entityWithColl[0]);
-    return entity.getService().getMongoDatabase().getCollection(entityWithColl[1]);
+  /**
+   * @param variants collections with non-default read preference or write concern, created once per option
+   */
+  private record CollectionHandle(MongoDBService service, long generation, String name,
+                                  MongoCollection<Document> collection,
+                                  MongoCollection<ObjectNode> jsonCollection,
+                                  Map<String, MongoCollection<?>> variants) {
+
+    private boolean isValid() {
+      return service.getGeneration() == generation;
+    }
+
+    private <T> MongoCollection<T> variant(MongoCollection<T> base, String key,
+                                           Function<MongoCollection<T>, MongoCollection<T>> factory) {
+      //noinspection unchecked
+      return (MongoCollection<T>) variants.computeIfAbsent(base.getDocumentClass().getName() + "|" + key,
+        k -> factory.apply(base));
+    }
   }
 
   private enum TypeEnum {
@@ -329,6 +1144,29 @@ public class Scratch3MongoDBBlocks extends Scratch3ExtensionBlocks {
     Asc, Desc
   }
 
+  @RequiredArgsConstructor
+  private enum ReadPreferenceOption {
+    Default(null), Primary("primary"), PrimaryPreferred("primaryPreferred"), Secondary("secondary"),
+    SecondaryPreferred("secondaryPreferred"), Nearest("nearest");
+
+    private final String mode;
+  }
+
+  @RequiredArgsConstructor
+  private enum WriteConcernOption {
+    Default(null), Unacknowledged(WriteConcern.UNACKNOWLEDGED), W1(WriteConcern.W1), Majority(WriteConcern.MAJORITY),
+    Journaled(WriteConcern.JOURNALED);
+
+    private final WriteConcern writeConcern;
+  }
+
+  @RequiredArgsConstructor
+  private enum DownsampleFunction {
+    Avg("$avg"), Min("$min"), Max("$max"), Sum("$sum"), Count("$sum"), First("$first"), Last("$last");
+
+    private final String operator;
+  }
+
   public enum ExtendedOperationType {
     ANY,
     INSERT,
@@ -0,0 +1,93 @@
+package org.homio.bundle.mongodb.entity;
+
+import org.bson.BsonDocument;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BsonFilterMatcherTest {
+
+  private static final BsonDocument DOCUMENT = BsonDocument.parse("{\"name\": \"Kitchen sensor\", \"value\": 21.5, "
+    + "\"count\": {\"$numberLong\": \"7\"}, \"tags\": [\"temp\", \"indoor\"], \"room\": {\"floor\": 1}, "
+    + "\"readings\": [{\"v\": 1}, {\"v\": 5}]}");
+
+  @Test
+  public void testEmptyFilterMatchesAll() {
+    assertSame(BsonFilterMatcher.ANY, BsonFilterMatcher.compile(new BsonDocument()));
+    assertTrue(BsonFilterMatcher.ANY.isEmpty());
+  }
+
+  @Test
+  public void testEquality() {
+    assertTrue(matches("{\"name\": \"Kitchen sensor\"}"));
+    assertTrue(matches("{\"room.floor\": 1}"));
+    assertTrue(matches("{\"count\": 7}"));
+    assertFalse(matches("{\"name\": \"Hall sensor\"}"));
+    assertFalse(matches("{\"missing\": 1}"));
+  }
+
+  @Test
+  public void testArrays() {
+    assertTrue(matches("{\"tags\": \"indoor\"}"));
+    assertTrue(matches("{\"tags\": [\"temp\", \"indoor\"]}"));
+    assertTrue(matches("{\"readings.v\": 5}"));
+    assertTrue(matches("{\"tags\": {\"$size\": 2}}"));
+    assertFalse(matches("{\"tags\": [\"indoor\", \"temp\"]}"));
+  }
+
+  @Test
+  public void testComparison() {
+    assertTrue(matches("{\"value\": {\"$gt\": 20, \"$lte\": 21.5}}"));
+    assertTrue(matches("{\"count\": {\"$gte\": 7.0}}"));
+    assertTrue(matches("{\"readings.v\": {\"$lt\": 2}}"));
+    assertFalse(matches("{\"value\": {\"$lt\": 21.5}}"));
+    assertFalse(matches("{\"name\": {\"$gt\": 1}}"));
+  }
+
+  @Test
+  public void testSetAndExistence() {
+    assertTrue(matches("{\"tags\": {\"$in\": [\"outdoor\", \"indoor\"]}}"));
+    assertTrue(matches("{\"value\": {\"$nin\": [1, 2]}}"));
+    assertTrue(matches("{\"room\": {\"$exists\": true}, \"missing\": {\"$exists\": false}}"));
+    assertTrue(matches("{\"value\": {\"$ne\": 1}}"));
+    assertFalse(matches("{\"tags\": {\"$nin\": [\"temp\"]}}"));
+  }
+
+  @Test
+  public void testRegularExpressions() {
+    assertTrue(matches("{\"name\": {\"$regex\": \"^kitchen\", \"$options\": \"i\"}}"));
+    assertTrue(matches("{\"name\": {\"$regularExpression\": {\"pattern\": \"sensor$\", \"options\": \"\"}}}"));
+    assertTrue(matches("{\"tags\": {\"$in\": [/^out/, /^ind/]}}"));
+    assertTrue(matches("{\"name\": {\"$not\": /^Hall/}}"));
+    assertTrue(matches("{\"name\": /SENSOR/i}"));
+    assertFalse(matches("{\"name\": {\"$regex\": \"^kitchen\"}}"));
+    assertFalse(matches("{\"tags\": {\"$nin\": [/^ind/]}}"));
+  }
+
+  @Test
+  public void testLogicalOperators() {
+    assertTrue(matches("{\"$or\": [{\"value\": 1}, {\"room.floor\": 1}]}"));
+    assertTrue(matches("{\"$and\": [{\"value\": {\"$gt\": 1}}, {\"tags\": \"temp\"}]}"));
+    assertTrue(matches("{\"$nor\": [{\"value\": 1}, {\"tags\": \"outdoor\"}]}"));
+    assertFalse(matches("{\"$and\": [{\"value\": 21.5}, {\"room.floor\": 2}]}"));
+  }
+
+  @Test
+  public void testUnsupportedFilters() {
+    assertThrows(BsonFilterMatcher.UnsupportedFilterException.class,
+      () -> BsonFilterMatcher.compile(BsonDocument.parse("{\"$where\": \"true\"}")));
+    assertNull(BsonFilterMatcher.tryCompile(BsonDocument.parse("{\"value\": {\"$mod\": [2, 0]}}")));
+    assertNull(BsonFilterMatcher.tryCompile(BsonDocument.parse("{\"$or\": {\"value\": 1}}")));
+    assertNull(BsonFilterMatcher.tryCompile(BsonDocument.parse("{\"$or\": [1]}")));
+    assertNull(BsonFilterMatcher.tryCompile(BsonDocument.parse("{\"tags\": {\"$in\": \"temp\"}}")));
+    assertNull(BsonFilterMatcher.tryCompile(BsonDocument.parse("{\"name\": {\"$regex\": \"(?<=a\"}}")));
+  }
+
+  private static boolean matches(String filter) {
+    return BsonFilterMatcher.compile(BsonDocument.parse(filter)).matches(DOCUMENT);
+  }
+}
@@ -0,0 +1,40 @@
+package org.homio.bundle.mongodb.entity;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MongoRetentionEngineTest {
+
+  @Test
+  public void testParsePolicies() {
+    List<MongoRetentionEngine.Policy> policies =
+      MongoRetentionEngine.parse("history ts 30d; events 1000\n\n logs t 12h ");
+
+    assertEquals(List.of(
+      new MongoRetentionEngine.Policy("history", "ts", TimeUnit.DAYS.toMillis(30), 0),
+      new MongoRetentionEngine.Policy("events", null, 0, 1000),
+      new MongoRetentionEngine.Policy("logs", "t", TimeUnit.HOURS.toMillis(12), 0)), policies);
+  }
+
+  @Test
+  public void testParseBlank() {
+    assertTrue(MongoRetentionEngine.parse("").isEmpty());
+    assertTrue(MongoRetentionEngine.parse(" ;\n").isEmpty());
+  }
+
+  @Test
+  public void testParseRejectsMalformedLines() {
+    assertThrows(IllegalArgumentException.class, () -> MongoRetentionEngine.parse("history"));
+    assertThrows(IllegalArgumentException.class, () -> MongoRetentionEngine.parse("events many"));
+    assertThrows(IllegalArgumentException.class, () -> MongoRetentionEngine.parse("events -5"));
+    assertThrows(IllegalArgumentException.class, () -> MongoRetentionEngine.parse("history ts 30w"));
+    assertThrows(IllegalArgumentException.class, () -> MongoRetentionEngine.parse("history ts d"));
+    assertThrows(IllegalArgumentException.class, () -> MongoRetentionEngine.parse("history ts 30d extra"));
+  }
+}
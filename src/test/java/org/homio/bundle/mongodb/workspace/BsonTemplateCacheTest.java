@@ -0,0 +1,88 @@
+package org.homio.bundle.mongodb.workspace;
+
+import org.bson.BsonDocument;
+import org.bson.BsonDouble;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonString;
+import org.bson.RawBsonDocument;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+
+public class BsonTemplateCacheTest {
+
+  private final BsonTemplateCache cache = new BsonTemplateCache(10);
+
+  @Test
+  public void testStaticJsonIsParsedOnce() {
+    BsonDocument document = cache.get("{\"a\": 1}");
+
+    assertInstanceOf(RawBsonDocument.class, document);
+    assertEquals(new BsonInt32(1), document.get("a"));
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void testRenderValueTypes() {
+    String template = "{\"n\": ${n}, \"s\": ${s}, \"b\": ${b}, \"l\": \"pre-${l}\"}";
+    BsonDocument document = cache.render(template, () -> "{\"n\": 5, \"s\": \"x\", \"b\": true, \"l\": \"pre-y\"}");
+
+    assertEquals(BsonDocument.parse("{\"n\": 5, \"s\": \"x\", \"b\": true, \"l\": \"pre-y\"}"), document);
+  }
+
+  @Test
+  public void testRenderNumberBeyondInt64() {
+    String template = "{\"n\": ${n}, \"l\": ${l}}";
+    BsonDocument document = cache.render(template, () -> "{\"n\": 12345678901234567890, \"l\": 9000000000}");
+
+    assertEquals(new BsonDouble(12345678901234567890D), document.get("n"));
+    assertEquals(new BsonInt64(9000000000L), document.get("l"));
+  }
+
+  @Test
+  public void testRenderUnescapesValueInsideString() {
+    String template = "{\"name\": \"${name}\"}";
+    BsonDocument document = cache.render(template, () -> "{\"name\": \"say \\\"hi\\\"\\n\"}");
+
+    assertEquals(new BsonString("say \"hi\"\n"), document.get("name"));
+  }
+
+  @Test
+  public void testRenderAdjacentVariables() {
+    String template = "{\"key\": \"${a}${b}\"}";
+    BsonDocument document = cache.render(template, () -> "{\"key\": \"ab\"}");
+
+    assertEquals(new BsonString("ab"), document.get("key"));
+  }
+
+  @Test
+  public void testRenderValueContainingFollowingLiteral() {
+    String template = "{\"a\": ${a}, \"b\": ${b}}";
+    BsonDocument document = cache.render(template, () -> "{\"a\": {\"x\": 1, \"b\": 2}, \"b\": 3}");
+
+    assertEquals(BsonDocument.parse("{\"a\": {\"x\": 1, \"b\": 2}, \"b\": 3}"), document);
+  }
+
+  @Test
+  public void testRenderDoesNotShareTemplateState() {
+    String template = "{\"a\": {\"b\": ${v}}}";
+    BsonDocument first = cache.render(template, () -> "{\"a\": {\"b\": 1}}");
+    first.getDocument("a").put("b", new BsonInt32(100));
+    BsonDocument second = cache.render(template, () -> "{\"a\": {\"b\": 2}}");
+
+    assertEquals(new BsonInt32(2), second.getDocument("a").get("b"));
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void testCacheIsBounded() {
+    BsonTemplateCache small = new BsonTemplateCache(2);
+    small.get("{\"a\": 1}");
+    small.get("{\"a\": 2}");
+    small.get("{\"a\": 3}");
+
+    assertEquals(2, small.size());
+  }
+}